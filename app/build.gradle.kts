@@ -47,7 +47,25 @@ application {
 }
 
 tasks.test {
-    useJUnitPlatform()
+    useJUnitPlatform {
+        excludeTags("benchmark")
+    }
+}
+
+// Timings are left out of gradle test, run them with gradle benchmark.
+tasks.register<Test>("benchmark") {
+    description = "Runs the tests tagged benchmark."
+    group = "verification"
+
+    testClassesDirs = sourceSets.test.get().output.classesDirs
+    classpath = sourceSets.test.get().runtimeClasspath
+
+    useJUnitPlatform {
+        includeTags("benchmark")
+    }
+
+    testLogging.showStandardStreams = true
+    outputs.upToDateWhen { false }
 }
 
 tasks.jar {
@@ -0,0 +1,309 @@
+package com.raphaeltannous;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import javax.swing.SwingUtilities;
+
+/**
+ * AsyncPasswordManager
+ *
+ * Runs the calls of a PasswordManagerInterface on virtual threads so that the
+ * EDT keeps painting while the database works. Writes go through a single lane
+ * and run in the order they were submitted, every call waits for the writes
+ * submitted before it. The futures complete on the callback executor, the EDT
+ * unless another one is given.
+ */
+public class AsyncPasswordManager implements AutoCloseable {
+    private static final Executor SWING_EXECUTOR = SwingUtilities::invokeLater;
+
+    private final PasswordManagerInterface db;
+    private final Executor callbackExecutor;
+
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    // Last submitted write, the next call starts after it.
+    private CompletableFuture<?> writeLane = CompletableFuture.completedFuture(null);
+
+    // Calls that are not done yet, the database is closed after them.
+    private final Set<CompletableFuture<?>> pendingCalls = ConcurrentHashMap.newKeySet();
+    private boolean isClosed = false;
+
+    public AsyncPasswordManager(PasswordManagerInterface db, Executor callbackExecutor) {
+        this.db = db;
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    public AsyncPasswordManager(PasswordManagerInterface db) {
+        this(db, SWING_EXECUTOR);
+    }
+
+    // Derives the key and opens the database on a virtual thread. Fails with a
+    // PasswordManagerOpenException if the password is wrong or the file is not a database.
+    public static CompletableFuture<AsyncPasswordManager> open(Path databasePath, String databasePassword) {
+        return open(databasePath, databasePassword, SWING_EXECUTOR);
+    }
+
+    public static CompletableFuture<AsyncPasswordManager> open(
+        Path databasePath,
+        String databasePassword,
+        Executor callbackExecutor
+    ) {
+        return supplyOnVirtualThread(
+            () -> withFilterIndex(new AsyncPasswordManager(PasswordManagerSQLite.open(databasePath, databasePassword), callbackExecutor)),
+            callbackExecutor
+        );
+    }
+
+    // Creates the database if it doesn't exist.
+    public static CompletableFuture<AsyncPasswordManager> create(Path databasePath, String databasePassword) {
+        return supplyOnVirtualThread(
+            () -> withFilterIndex(new AsyncPasswordManager(new PasswordManagerSQLite(databasePath, databasePassword))),
+            SWING_EXECUTOR
+        );
+    }
+
+    // The index of filter() is built right after the unlock instead of on the first keystroke.
+    private static AsyncPasswordManager withFilterIndex(AsyncPasswordManager asyncDb) {
+        asyncDb.buildFilterIndex();
+
+        return asyncDb;
+    }
+
+    // The synchronous database, its calls block the calling thread.
+    public PasswordManagerInterface getDatabase() {
+        return db;
+    }
+
+    public <T> CompletableFuture<T> read(Function<PasswordManagerInterface, T> query) {
+        return submit(query, false);
+    }
+
+    public <T> CompletableFuture<T> write(Function<PasswordManagerInterface, T> update) {
+        return submit(update, true);
+    }
+
+    public CompletableFuture<Void> run(Consumer<PasswordManagerInterface> update) {
+        return submit(db -> {
+            update.accept(db);
+
+            return null;
+        }, true);
+    }
+
+    public CompletableFuture<Integer> getPasswordsCount() {
+        return read(PasswordManagerInterface::getPasswordsCount);
+    }
+
+    public CompletableFuture<List<PasswordEntry>> fetchEntries() {
+        return read(PasswordManagerInterface::fetchEntries);
+    }
+
+    public CompletableFuture<PasswordEntry> fetchEntry(int passwordId) {
+        return read(db -> db.fetchEntry(passwordId));
+    }
+
+    public CompletableFuture<PasswordPage> fetchPage(String filter, PasswordPage.Key afterKey, int limit, PasswordPage.SortColumn sortColumn) {
+        return read(db -> db.fetchPage(filter, afterKey, limit, sortColumn));
+    }
+
+    public CompletableFuture<List<PasswordPage.Key>> fetchPageKeys(String filter, int pageSize, PasswordPage.SortColumn sortColumn) {
+        return read(db -> db.fetchPageKeys(filter, pageSize, sortColumn));
+    }
+
+    public CompletableFuture<Integer> countEntries(String filter, PasswordPage.Key beforeKey) {
+        return read(db -> db.countEntries(filter, beforeKey));
+    }
+
+    public CompletableFuture<List<Integer>> search(String query, int limit) {
+        return read(db -> db.search(query, limit));
+    }
+
+    public CompletableFuture<int[]> filter(String query) {
+        return read(db -> db.filter(query));
+    }
+
+    public CompletableFuture<Void> buildFilterIndex() {
+        return read(db -> {
+            db.buildFilterIndex();
+
+            return null;
+        });
+    }
+
+    public CompletableFuture<String> fetchWebsite(int passwordId) {
+        return read(db -> db.fetchWebsite(passwordId));
+    }
+
+    public CompletableFuture<String> fetchUsername(int passwordId) {
+        return read(db -> db.fetchUsername(passwordId));
+    }
+
+    public CompletableFuture<String> fetchPassword(int passwordId) {
+        return read(db -> db.fetchPassword(passwordId));
+    }
+
+    public CompletableFuture<String[]> fetchPasswordData(int passwordId) {
+        return read(db -> db.fetchPasswordData(passwordId));
+    }
+
+    public CompletableFuture<String> fetchOTP(int passwordId) {
+        return read(db -> db.fetchOTP(passwordId));
+    }
+
+    public CompletableFuture<String> fetchNote(int passwordId) {
+        return read(db -> db.fetchNote(passwordId));
+    }
+
+    public CompletableFuture<List<String[]>> fetchBackupCodes(int passwordId) {
+        return read(db -> db.fetchBackupCodes(passwordId));
+    }
+
+    public CompletableFuture<Integer> addPassword(String website, String username, String password) {
+        return write(db -> db.addPassword(website, username, password));
+    }
+
+    public CompletableFuture<Void> updateEntry(int passwordId, EntryPatch patch) {
+        return run(db -> db.updateEntry(passwordId, patch));
+    }
+
+    public CompletableFuture<Void> deletePassword(int passwordId) {
+        return run(db -> db.deletePassword(passwordId));
+    }
+
+    public CompletableFuture<Void> modifyOTP(int passwordId, String newOTP) {
+        return run(db -> db.modifyOTP(passwordId, newOTP));
+    }
+
+    public CompletableFuture<Void> modifyNote(int passwordId, String newNote) {
+        return run(db -> db.modifyNote(passwordId, newNote));
+    }
+
+    public CompletableFuture<Void> addBackupCode(int passwordId, String backupCode) {
+        return run(db -> db.addBackupCode(passwordId, backupCode));
+    }
+
+    public CompletableFuture<Void> modifyBackupCode(int backupCodeId, String newBackupCode) {
+        return run(db -> db.modifyBackupCode(backupCodeId, newBackupCode));
+    }
+
+    public CompletableFuture<Void> removeBackupCode(int backupCodeId) {
+        return run(db -> db.removeBackupCode(backupCodeId));
+    }
+
+    public CompletableFuture<Void> updateBackupCodeStatus(int backupCodeId, int status) {
+        return run(db -> db.updateBackupCodeStatus(backupCodeId, status));
+    }
+
+    public CompletableFuture<BatchWriter.Result> batch(
+        Consumer<BatchWriter> operations,
+        int chunkSize,
+        BatchWriter.ProgressListener progressListener
+    ) {
+        return write(db -> db.batch(operations, chunkSize, progressListener));
+    }
+
+    // The progress is reported on the callback executor. Cancelling the returned future
+    // cancels the rekey, which then leaves the database as it was.
+    public CompletableFuture<Boolean> rekey(String newPassword, RekeyListener listener) {
+        CompletableFuture<Boolean> rekeyed = new CompletableFuture<>();
+
+        RekeyListener rekeyListener = new RekeyListener() {
+            @Override
+            public void onProgress(long rowsCopied, long totalRows) {
+                if (listener != null) {
+                    callbackExecutor.execute(() -> listener.onProgress(rowsCopied, totalRows));
+                }
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return rekeyed.isCancelled() || (listener != null && listener.isCancelled());
+            }
+        };
+
+        write(db -> db.rekey(newPassword, rekeyListener)).whenComplete((value, e) -> {
+            if (e == null) {
+                rekeyed.complete(value);
+            } else {
+                rekeyed.completeExceptionally(e);
+            }
+        });
+
+        return rekeyed;
+    }
+
+    private synchronized <T> CompletableFuture<T> submit(Function<PasswordManagerInterface, T> task, boolean isWrite) {
+        if (isClosed) {
+            throw new IllegalStateException("database is closed.");
+        }
+
+        // A failed write doesn't stop the ones after it.
+        CompletableFuture<T> result = writeLane
+            .handle((value, e) -> null)
+            .thenApplyAsync(ignored -> task.apply(db), executor);
+
+        if (isWrite) {
+            writeLane = result;
+        }
+
+        pendingCalls.add(result);
+        result.whenComplete((value, e) -> pendingCalls.remove(result));
+
+        return completeOn(result, callbackExecutor);
+    }
+
+    private static <T> CompletableFuture<T> supplyOnVirtualThread(Supplier<T> task, Executor callbackExecutor) {
+        return completeOn(CompletableFuture.supplyAsync(task, Thread::startVirtualThread), callbackExecutor);
+    }
+
+    // The dependent stages of the returned future run on callbackExecutor, even when it fails.
+    private static <T> CompletableFuture<T> completeOn(CompletableFuture<T> future, Executor callbackExecutor) {
+        CompletableFuture<T> callback = new CompletableFuture<>();
+
+        future.whenComplete((value, e) -> callbackExecutor.execute(() -> {
+            if (e == null) {
+                callback.complete(value);
+            } else {
+                callback.completeExceptionally(e instanceof CompletionException ? e.getCause() : e);
+            }
+        }));
+
+        return callback;
+    }
+
+    // Closes the database once the pending writes are done, nothing can be submitted afterwards.
+    public CompletableFuture<Void> closeAsync() {
+        CompletableFuture<Void> closed;
+
+        synchronized (this) {
+            if (isClosed) {
+                return CompletableFuture.completedFuture(null);
+            }
+
+            isClosed = true;
+
+            closed = CompletableFuture.allOf(pendingCalls.toArray(CompletableFuture[]::new))
+                .handle((value, e) -> null)
+                .thenRunAsync(db::close, executor)
+                .whenComplete((value, e) -> executor.shutdown());
+        }
+
+        return completeOn(closed, callbackExecutor);
+    }
+
+    @Override
+    public void close() {
+        closeAsync();
+    }
+}
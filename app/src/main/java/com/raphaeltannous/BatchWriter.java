@@ -0,0 +1,45 @@
+package com.raphaeltannous;
+
+/**
+ * BatchWriter
+ *
+ * Writes queued through PasswordManagerInterface.batch(). They are sent in JDBC
+ * batches and committed together in one transaction once the batch returns.
+ *
+ * Like the methods of PasswordManagerInterface, ids are checked: a modification,
+ * deletion or backup code of a missing id fails the whole batch, which is rolled
+ * back (Result.committed() is false). The check happens when the rows are sent,
+ * so it is not thrown by the method that queued the row.
+ */
+public interface BatchWriter {
+    public static final int DEFAULT_CHUNK_SIZE = 500;
+
+    @FunctionalInterface
+    public interface ProgressListener {
+        // Called after every chunk sent to the database.
+        void onProgress(long rowsWritten, long elapsedNanos);
+    }
+
+    public record Result(long rowsWritten, long elapsedNanos, boolean committed) {
+        public double rowsPerSecond() {
+            if (elapsedNanos == 0) {
+                return 0;
+            }
+
+            return rowsWritten * 1_000_000_000.0 / elapsedNanos;
+        }
+    }
+
+    public void addPassword(NewPasswordEntry entry);
+    public void addPassword(String website, String username, String password);
+
+    public void modifyWebsite(int passwordId, String newWebsite); // newWebsite cannot be empty.
+    public void modifyUsername(int passwordId, String newUsername); // newUsername cannot be empty.
+    public void modifyPassword(int passwordId, String newPassword); // newPassword cannot be empty.
+    public void modifyOTP(int passwordId, String newOTP);
+    public void modifyNote(int passwordId, String newNote);
+
+    public void deletePassword(int passwordId);
+
+    public void addBackupCode(int passwordId, String backupCode);
+}
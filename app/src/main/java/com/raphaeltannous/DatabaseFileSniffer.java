@@ -0,0 +1,166 @@
+package com.raphaeltannous;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+
+/**
+ * DatabaseFileSniffer
+ *
+ * Rejects files that cannot be a database from their first page, before the key
+ * derivation. An encrypted database is a whole number of pages and its first page
+ * (the salt, then encrypted data) looks random, so anything with a known header,
+ * zeroes or only text cannot be one. A file that passes may still not be a
+ * database, only opening it with the password tells.
+ */
+public class DatabaseFileSniffer {
+    // SQLCipher 4 defaults (SQLiteMCSqlCipherConfig.getV4Defaults()).
+    public static final int PAGE_SIZE = 4096;
+
+    private static final byte[] SQLITE_HEADER = "SQLite format 3\0".getBytes(StandardCharsets.US_ASCII);
+
+    // Headers of common files that end up next to a database: archives, documents,
+    // images, executables and other password managers. None is shorter than 4 bytes,
+    // so that the random salt of a database practically never starts with one.
+    private static final byte[][] KNOWN_HEADERS = {
+        {'P', 'K', 3, 4},                                                       // zip, jar, docx...
+        {'%', 'P', 'D', 'F', '-'},                                              // pdf
+        {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'},                   // png
+        {'G', 'I', 'F', '8'},                                                   // gif
+        {'7', 'z', (byte) 0xbc, (byte) 0xaf, 0x27, 0x1c},                       // 7z
+        {0x7f, 'E', 'L', 'F'},                                                  // elf
+        {(byte) 0xca, (byte) 0xfe, (byte) 0xba, (byte) 0xbe},                   // java class
+        {0x03, (byte) 0xd9, (byte) 0xa2, (byte) 0x9a, 0x67, (byte) 0xfb, 0x4b, (byte) 0xb5}, // keepass kdbx
+        {'R', 'I', 'F', 'F'},                                                   // wav, avi, webp
+    };
+
+    private DatabaseFileSniffer() {}
+
+    public enum Result {
+        POSSIBLY_A_DATABASE,
+        NOT_A_FILE,
+        TOO_SMALL,        // smaller than a page.
+        NOT_PAGE_ALIGNED, // not a whole number of pages.
+        PLAIN_SQLITE,     // an unencrypted SQLite database.
+        ZERO_FILLED,
+        KNOWN_FORMAT,
+        TEXT;
+
+        public boolean isPossiblyADatabase() {
+            return this == POSSIBLY_A_DATABASE;
+        }
+    }
+
+    // Reads the first page at most, NOT_A_FILE if it's missing, a directory or unreadable.
+    public static Result sniff(Path databasePath) {
+        long size;
+        ByteBuffer firstPage = ByteBuffer.allocate(PAGE_SIZE);
+
+        try (FileChannel channel = FileChannel.open(databasePath, StandardOpenOption.READ)) {
+            size = channel.size();
+
+            if (size < PAGE_SIZE) {
+                return Result.TOO_SMALL;
+            }
+
+            while (firstPage.hasRemaining()) {
+                if (channel.read(firstPage) == -1) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            return Result.NOT_A_FILE;
+        }
+
+        if (firstPage.hasRemaining()) {
+            return Result.TOO_SMALL;
+        }
+
+        return sniff(firstPage.array(), size);
+    }
+
+    // firstPage holds the first PAGE_SIZE bytes of a file of size bytes.
+    static Result sniff(byte[] firstPage, long size) {
+        if (startsWith(firstPage, SQLITE_HEADER)) {
+            return Result.PLAIN_SQLITE;
+        }
+
+        for (byte[] header : KNOWN_HEADERS) {
+            if (startsWith(firstPage, header)) {
+                return Result.KNOWN_FORMAT;
+            }
+        }
+
+        if (size % PAGE_SIZE != 0) {
+            return Result.NOT_PAGE_ALIGNED;
+        }
+
+        boolean isZeroFilled = true;
+        boolean isText = true;
+
+        for (byte b : firstPage) {
+            isZeroFilled &= b == 0;
+
+            // Printable ASCII, tabs and line breaks, or any byte of a UTF-8 sequence.
+            // A page of random bytes practically never stays in this range.
+            isText &= (b >= 0x20 && b < 0x7f) || b == '\t' || b == '\n' || b == '\r' || b < 0;
+        }
+
+        if (isZeroFilled) {
+            return Result.ZERO_FILLED;
+        }
+
+        if (isText) {
+            return Result.TEXT;
+        }
+
+        return Result.POSSIBLY_A_DATABASE;
+    }
+
+    // Regular files under directory (maxDepth 1 for its direct children) that may be databases,
+    // only their first page is read. Unreadable files and directories are skipped.
+    public static List<Path> findDatabases(Path directory, int maxDepth) throws IOException {
+        List<Path> databases = new ArrayList<>();
+
+        Files.walkFileTree(directory, EnumSet.noneOf(FileVisitOption.class), maxDepth, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                if (isCandidate(attributes) && sniff(file).isPossiblyADatabase()) {
+                    databases.add(file);
+                }
+
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        return databases;
+    }
+
+    // The files that certainly are not databases are not opened, from the attributes read while walking.
+    private static boolean isCandidate(BasicFileAttributes attributes) {
+        return attributes.isRegularFile()
+            && attributes.size() >= PAGE_SIZE
+            && attributes.size() % PAGE_SIZE == 0;
+    }
+
+    private static boolean startsWith(byte[] bytes, byte[] prefix) {
+        return bytes.length >= prefix.length && Arrays.equals(bytes, 0, prefix.length, prefix, 0, prefix.length);
+    }
+}
@@ -123,15 +123,24 @@ public class EPMAddBackupCodeDialog extends JDialog {
     private void addButtonActionLister() {
         String backupCode = backupCodeTextField.getText();
 
-        passwordsPanel.db.addBackupCode(
+        // The dialog stays open until the backup code is added, it can be retried if it fails.
+        addButton.setEnabled(false);
+        cancelButton.setEnabled(false);
+
+        passwordsPanel.asyncDb.addBackupCode(
             this.passwordId,
             backupCode
-        );
+        ).whenComplete((value, e) -> {
+            if (e != null) {
+                EPMUtilities.showError(this, "Add Backup Code", e);
 
-        passwordsPanel.db.updateHasBackupCodeStatus(
-            this.passwordId
-        );
+                addButton.setEnabled(true);
+                cancelButton.setEnabled(true);
 
-        dispose();
+                return;
+            }
+
+            dispose();
+        });
     }
 }
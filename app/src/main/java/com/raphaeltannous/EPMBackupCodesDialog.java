@@ -51,6 +51,8 @@ public class EPMBackupCodesDialog extends JDialog {
         initDialogComponents();
 
         getRootPane().setDefaultButton(okButton);
+
+        updateBackupCodesScrollPane();
     }
 
     private void initDialogComponents() {
@@ -60,8 +62,6 @@ public class EPMBackupCodesDialog extends JDialog {
         okButton = new JButton();
         addButton = new JButton();
 
-        JScrollPane backupCodeScrollPane = new JScrollPane();
-
         // this
         setTitle("Backup Codes");
         setDefaultCloseOperation(WindowConstants.DISPOSE_ON_CLOSE);
@@ -84,9 +84,7 @@ public class EPMBackupCodesDialog extends JDialog {
                     ""
                 ));
 
-                backupCodeScrollPane = getBackupCodesScrollPane();
-
-                contentPanel.add(backupCodeScrollPane, "grow");
+                // The backup codes are added once fetched, see updateBackupCodesScrollPane().
             }
         }
         dialogPane.add(contentPanel, "grow");
@@ -95,7 +93,7 @@ public class EPMBackupCodesDialog extends JDialog {
         setLocationRelativeTo(getOwner());
     }
 
-    private JScrollPane getBackupCodesScrollPane() {
+    private JScrollPane getBackupCodesScrollPane(List<String[]> backupCodes) {
         JPanel backupCodeScrollPanePanel = new JPanel();
         JScrollPane backupCodeScrollPane = new JScrollPane();
 
@@ -109,7 +107,6 @@ public class EPMBackupCodesDialog extends JDialog {
 
             // backupCodes
             {
-                List<String[]> backupCodes =  passwordsPanel.db.fetchBackupCodes(this.passwordId);
                 int backupCodesLength = backupCodes.size();
 
                 backupCodeScrollPanePanel.setLayout(
@@ -149,12 +146,21 @@ public class EPMBackupCodesDialog extends JDialog {
         return backupCodeScrollPane;
     }
 
+    // The backup codes are fetched after the writes submitted before, then shown on the EDT.
     protected void updateBackupCodesScrollPane() {
-        JScrollPane backupCodeScrollPane = getBackupCodesScrollPane();
+        passwordsPanel.asyncDb.fetchBackupCodes(this.passwordId).whenComplete((backupCodes, e) -> {
+            if (e != null) {
+                EPMUtilities.showError(this, "Backup Codes", e);
+
+                return;
+            }
 
-        contentPanel.removeAll();
-        contentPanel.add(backupCodeScrollPane, "grow");
-        FlatLaf.revalidateAndRepaintAllFramesAndDialogs();
+            JScrollPane backupCodeScrollPane = getBackupCodesScrollPane(backupCodes);
+
+            contentPanel.removeAll();
+            contentPanel.add(backupCodeScrollPane, "grow");
+            FlatLaf.revalidateAndRepaintAllFramesAndDialogs();
+        });
     }
 
     private void addButtonActionLister() {
@@ -291,12 +297,18 @@ class BackupCodeItem extends JPanel {
 
         String newBackupCode = backupCodeTextField.getText();
 
-        passwordsPanel.db.modifyBackupCode(
+        passwordsPanel.asyncDb.modifyBackupCode(
             this.backupCodeId,
             newBackupCode
-        );
+        ).whenComplete((value, e) -> {
+            // The stored backup code is shown again.
+            if (e != null) {
+                EPMUtilities.showError(backupCodesDialog, "Backup Codes", e);
+                backupCodesDialog.updateBackupCodesScrollPane();
+            }
 
-        SwingUtilities.invokeLater(() -> confirmButtonActionListenerInProgress = false);
+            confirmButtonActionListenerInProgress = false;
+        });
     }
 
     private void deleteButtonActionListener() {
@@ -306,14 +318,14 @@ class BackupCodeItem extends JPanel {
 
         deleteButtonActionListenerInProgress = true;
 
-        passwordsPanel.db.removeBackupCode(this.backupCodeId);
-
-        passwordsPanel.db.updateHasBackupCodeStatus(
-            this.passwordId
-        );
+        passwordsPanel.asyncDb.removeBackupCode(this.backupCodeId).whenComplete((value, e) -> {
+            if (e != null) {
+                EPMUtilities.showError(backupCodesDialog, "Backup Codes", e);
+            }
 
-        backupCodesDialog.updateBackupCodesScrollPane();
+            backupCodesDialog.updateBackupCodesScrollPane();
 
-        SwingUtilities.invokeLater(() -> deleteButtonActionListenerInProgress = false);
+            deleteButtonActionListenerInProgress = false;
+        });
     }
 }
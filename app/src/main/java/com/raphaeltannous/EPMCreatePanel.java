@@ -192,16 +192,38 @@ public class EPMCreatePanel extends JPanel {
     private void createActionListener() {
         Path filePath = Paths.get(chosenPath.toAbsolutePath().toString(), databaseFilenameTextField.getText() + ".epm");
 
-        EPMPasswordsPanel passwordsPanel = new EPMPasswordsPanel(
-            this.frame,
+        createDatabaseButton.setEnabled(false);
+
+        // Created off the EDT, deriving the key takes a while.
+        AsyncPasswordManager.create(
             filePath,
             String.valueOf(passwordField.getPassword())
-        );
+        ).whenComplete((asyncDb, e) -> {
+            if (e != null) {
+                e.printStackTrace(System.err);
+
+                checkCreateButtonStatus();
+
+                return;
+            }
+
+            // The panel was closed while the database was being created.
+            if (!isShowing()) {
+                asyncDb.close();
+
+                return;
+            }
+
+            EPMPasswordsPanel passwordsPanel = new EPMPasswordsPanel(
+                this.frame,
+                asyncDb
+            );
 
-        frame.contentPane.removeAll();
-        frame.contentPane.add(passwordsPanel, "grow");
+            frame.contentPane.removeAll();
+            frame.contentPane.add(passwordsPanel, "grow");
 
-        FlatLaf.revalidateAndRepaintAllFramesAndDialogs();
+            FlatLaf.revalidateAndRepaintAllFramesAndDialogs();
+        });
     }
 
     private void choosePathActionListener() {
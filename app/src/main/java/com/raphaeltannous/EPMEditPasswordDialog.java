@@ -77,21 +77,43 @@ public class EPMEditPasswordDialog extends JDialog {
         passwordToolBar.add(passwordGeneratorButton);
         passwordField.putClientProperty(FlatClientProperties.TEXT_FIELD_TRAILING_COMPONENT, passwordToolBar);
 
-        // Set data in field
-        // 0 -> id
-        // 1 -> website
-        // 2 -> username
-        // 3 -> password
-        // 4 -> totp
-        // 5 -> hasBackupCodes
-        // 6 -> note
-        sqlitePasswordData = this.passwordsPanel.db.fetchPasswordData(this.passwordId);
-
-        websiteTextField.setText(sqlitePasswordData[1]);
-        usernameTextField.setText(sqlitePasswordData[2]);
-        passwordField.setText(sqlitePasswordData[3]);
-        totpPasswordField.setText(sqlitePasswordData[4]);
-        noteTextArea.setText(sqlitePasswordData[6]);
+        // The fields are filled once the password is fetched.
+        setFieldsEnabled(false);
+
+        this.passwordsPanel.asyncDb.fetchPasswordData(this.passwordId).whenComplete((passwordData, e) -> {
+            if (e != null) {
+                EPMUtilities.showError(this, "Edit Password", e);
+                dispose();
+
+                return;
+            }
+
+            // Set data in field
+            // 0 -> id
+            // 1 -> website
+            // 2 -> username
+            // 3 -> password
+            // 4 -> totp
+            // 5 -> hasBackupCodes
+            // 6 -> note
+            sqlitePasswordData = passwordData;
+
+            websiteTextField.setText(sqlitePasswordData[1]);
+            usernameTextField.setText(sqlitePasswordData[2]);
+            passwordField.setText(sqlitePasswordData[3]);
+            totpPasswordField.setText(sqlitePasswordData[4]);
+            noteTextArea.setText(sqlitePasswordData[6]);
+
+            setFieldsEnabled(true);
+        });
+    }
+
+    private void setFieldsEnabled(boolean status) {
+        websiteTextField.setEnabled(status);
+        usernameTextField.setEnabled(status);
+        passwordField.setEnabled(status);
+        totpPasswordField.setEnabled(status);
+        noteTextArea.setEnabled(status);
     }
 
     private void initDialogComponents() {
@@ -280,6 +302,11 @@ public class EPMEditPasswordDialog extends JDialog {
     }
 
     private boolean isPasswordDataChanged() {
+        // Not fetched yet.
+        if (sqlitePasswordData == null) {
+            return false;
+        }
+
         String websiteData = websiteTextField.getText();
         String usernameData = usernameTextField.getText();
         String passwordData = String.valueOf(passwordField.getPassword());
@@ -321,26 +348,43 @@ public class EPMEditPasswordDialog extends JDialog {
         String totpData = String.valueOf(totpPasswordField.getPassword());
         String noteData = noteTextArea.getText();
 
+        EntryPatch patch = new EntryPatch();
+
         if (!websiteData.equals(sqlitePasswordData[1])) {
-            passwordsPanel.db.modifyWebsite(this.passwordId, websiteData);
+            patch.website(websiteData);
         }
 
         if (!usernameData.equals(sqlitePasswordData[2])) {
-            passwordsPanel.db.modifyUsername(this.passwordId, usernameData);
+            patch.username(usernameData);
         }
 
         if (!passwordData.equals(sqlitePasswordData[3])) {
-            passwordsPanel.db.modifyUsername(this.passwordId, passwordData);
+            patch.password(passwordData);
         }
 
         if (!totpData.equals(sqlitePasswordData[4])) {
-            passwordsPanel.db.modifyOTP(this.passwordId, totpData);
+            patch.otp(totpData);
         }
 
         if (!noteData.equals(sqlitePasswordData[6])) {
-            passwordsPanel.db.modifyNote(this.passwordId, noteData);
+            patch.note(noteData);
         }
 
-        dispose();
+        // The dialog stays open until the password is updated, it can be retried if it fails.
+        updateButton.setEnabled(false);
+        cancelButton.setEnabled(false);
+
+        passwordsPanel.asyncDb.updateEntry(this.passwordId, patch).whenComplete((value, e) -> {
+            if (e != null) {
+                EPMUtilities.showError(this, "Edit Password", e);
+
+                cancelButton.setEnabled(true);
+                checkUpdateButtonStatus();
+
+                return;
+            }
+
+            dispose();
+        });
     }
 }
@@ -1,5 +1,6 @@
 package com.raphaeltannous;
 
+import java.awt.Component;
 import java.awt.Container;
 import java.awt.Cursor;
 import java.awt.Desktop;
@@ -8,6 +9,8 @@ import java.awt.event.InputEvent;
 import java.awt.event.KeyEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -95,6 +98,12 @@ public class EPMFrame extends JFrame {
         this.setTitle("EPM");
         this.setSize(777, 333);
         this.setDefaultCloseOperation(WindowConstants.DISPOSE_ON_CLOSE);
+        this.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosed(WindowEvent e) {
+                closeDatabase();
+            }
+        });
         this.setMinimumSize(new Dimension(777, 333));
         contentPane = getContentPane();
         contentPane.setLayout(new MigLayout("insets 0, fill"));
@@ -352,6 +361,15 @@ public class EPMFrame extends JFrame {
         dispose();
     }
 
+    // Closes the opened database (if any) before its panel is removed.
+    private void closeDatabase() {
+        for (Component component : contentPane.getComponents()) {
+            if (component instanceof EPMPasswordsPanel) {
+                ((EPMPasswordsPanel) component).closeDatabase();
+            }
+        }
+    }
+
     private void closeActionListener() {
         if (closeActionListenerInProgress) {
             return;
@@ -359,6 +377,8 @@ public class EPMFrame extends JFrame {
 
         closeActionListenerInProgress = true;
 
+        closeDatabase();
+
         EPMOpenAndCreatePanel openAndCreatePanel = new EPMOpenAndCreatePanel(this);
         contentPane.removeAll();
         contentPane.add(openAndCreatePanel, "align center");
@@ -374,6 +394,8 @@ public class EPMFrame extends JFrame {
 
         openActionListenerInProgress = true;
 
+        closeDatabase();
+
         EPMOpenPanel openPanel = new EPMOpenPanel(this);
         contentPane.removeAll();
         contentPane.add(openPanel, "align center");
@@ -389,6 +411,8 @@ public class EPMFrame extends JFrame {
 
         createActionListenerInProgress = true;
 
+        closeDatabase();
+
         EPMCreatePanel createPanel = new EPMCreatePanel(this);
         contentPane.removeAll();
         contentPane.add(createPanel, "align center");
@@ -227,10 +227,21 @@ public class EPMNewPasswordDialog extends JDialog {
         String username = usernameTextField.getText();
         String password = String.valueOf(passwordField.getPassword());
 
-        passwordsPanel.db.addPassword(website, username, password);
+        // The dialog stays open until the password is added, it can be retried if it fails.
+        addButton.setEnabled(false);
+        cancelButton.setEnabled(false);
 
-        passwordsPanel.updateTableModel();
+        passwordsPanel.asyncDb.addPassword(website, username, password).whenComplete((passwordId, e) -> {
+            if (e != null) {
+                EPMUtilities.showError(this, "New Password", e);
 
-        dispose();
+                cancelButton.setEnabled(true);
+                checkAddButtonStatus();
+
+                return;
+            }
+
+            dispose();
+        });
     }
 }
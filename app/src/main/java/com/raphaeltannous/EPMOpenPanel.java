@@ -119,16 +119,52 @@ public class EPMOpenPanel extends JPanel {
     }
 
 	private void openActionListener() {
-        if (
-            PasswordManagerInterface.isFileADB(
-                chosenFile,
-                String.valueOf(passwordField.getPassword())
-            )
-        ) {
+        openDatabaseButton.setEnabled(false);
+
+        authenticationLabel.setText("Opening...");
+        authenticationLabel.setForeground(null);
+
+        // The key derivation takes a while, the panel keeps painting meanwhile.
+        AsyncPasswordManager.open(
+            chosenFile,
+            String.valueOf(passwordField.getPassword())
+        ).whenComplete((asyncDb, e) -> {
+            if (e != null) {
+                if (!(e instanceof IllegalArgumentException)) {
+                    e.printStackTrace(System.err);
+                }
+
+                // Other failures are shown as a wrong password.
+                PasswordManagerOpenException.Reason reason = e instanceof PasswordManagerOpenException openException
+                    ? openException.getReason()
+                    : PasswordManagerOpenException.Reason.WRONG_PASSWORD;
+
+                if (reason == PasswordManagerOpenException.Reason.WRONG_PASSWORD) {
+                    passwordField.putClientProperty("JComponent.outline", "error");
+                }
+
+                authenticationLabel.setText(switch (reason) {
+                    case WRONG_PASSWORD -> "Wrong Credentials...";
+                    case NOT_A_VAULT -> "Not a Database...";
+                    case CORRUPT -> "Corrupt Database...";
+                });
+                authenticationLabel.setForeground(Color.RED);
+
+                checkOpenButtonStatus();
+
+                return;
+            }
+
+            // The panel was closed while the database was opening.
+            if (!isShowing()) {
+                asyncDb.close();
+
+                return;
+            }
+
             EPMPasswordsPanel passwordsPanel = new EPMPasswordsPanel(
                 this.frame,
-                chosenFile,
-                String.valueOf(passwordField.getPassword())
+                asyncDb
             );
 
             frame.contentPane.removeAll();
@@ -136,14 +172,7 @@ public class EPMOpenPanel extends JPanel {
             frame.contentPane.add(passwordsPanel, "grow");
 
             FlatLaf.revalidateAndRepaintAllFramesAndDialogs();
-
-            return;
-        }
-
-        passwordField.putClientProperty("JComponent.outline", "error");
-
-        authenticationLabel.setText("Wrong Credentials...");
-        authenticationLabel.setForeground(Color.RED);
+        });
 	}
 
 	private void chooseActionListener() {
@@ -161,6 +190,17 @@ public class EPMOpenPanel extends JPanel {
             chosenFile = chosenFile.normalize();
 
             filePathLabel.setText(chosenFile.toString());
+
+            // Only the first page is read, a file that cannot be a database is refused
+            // before the password is even typed.
+            if (DatabaseFileSniffer.sniff(chosenFile).isPossiblyADatabase()) {
+                authenticationLabel.setText("");
+            } else {
+                chosenFile = null;
+
+                authenticationLabel.setText("Not a Database...");
+                authenticationLabel.setForeground(Color.RED);
+            }
         }
 
         checkOpenButtonStatus();
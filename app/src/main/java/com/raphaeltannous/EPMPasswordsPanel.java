@@ -3,22 +3,32 @@ package com.raphaeltannous;
 import java.awt.Color;
 import java.awt.Component;
 import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.event.ActionListener;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
-import java.nio.file.Path;
 
+import java.util.BitSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 import javax.swing.JMenuItem;
 import javax.swing.JPanel;
 import javax.swing.JPopupMenu;
 import javax.swing.JScrollPane;
 import javax.swing.JTable;
+import javax.swing.JTextField;
 import javax.swing.ListSelectionModel;
+import javax.swing.RowFilter;
 import javax.swing.SwingUtilities;
-import javax.swing.table.DefaultTableModel;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import javax.swing.table.TableCellRenderer;
+import javax.swing.table.TableModel;
+import javax.swing.table.TableRowSorter;
 
+import com.formdev.flatlaf.FlatClientProperties;
 import com.formdev.flatlaf.extras.FlatSVGIcon;
 
 import net.miginfocom.swing.MigLayout;
@@ -29,9 +39,39 @@ import net.miginfocom.swing.MigLayout;
 public class EPMPasswordsPanel extends JPanel {
     private EPMFrame frame;
     protected PasswordManagerInterface db;
+    protected AsyncPasswordManager asyncDb;
+
+    // From this number of passwords, the table only loads the rows it shows.
+    private static final int LAZY_LOADING_THRESHOLD = 10_000;
 
     private CustomTable passwordsTable;
-    private DefaultTableModel passwordsTableModel;
+    private final PasswordsTableModel memoryTableModel = new PasswordsTableModel();
+    private LazyPasswordsTableModel lazyTableModel; // null unless the database is large.
+    private EntryTableModel passwordsTableModel = memoryTableModel;
+    private JTextField filterTextField;
+
+    // Reloads of the table run in parallel, only the last one is shown.
+    private long tableModelRequest = 0;
+    private boolean isTableModelReloading = false;
+
+    // Filters run in parallel as the user types, only the last one is applied.
+    private long filterRequest = 0;
+
+    // The events carry the changed rows, which are applied on the EDT in the order of the writes.
+    private final PasswordManagerEvent.Listener changeListener = event -> {
+        switch (event) {
+            case PasswordManagerEvent.EntryAdded added -> putRowLater(added.entry());
+            case PasswordManagerEvent.EntryUpdated updated -> {
+                // The password is not shown.
+                if (!updated.fields().equals(Set.of("password"))) {
+                    putRowLater(updated.entry());
+                }
+            }
+            case PasswordManagerEvent.BackupCodesChanged changed -> putRowLater(changed.entry());
+            case PasswordManagerEvent.EntryDeleted deleted -> SwingUtilities.invokeLater(() -> removeRow(deleted.passwordId()));
+            case PasswordManagerEvent.AllEntriesChanged changed -> SwingUtilities.invokeLater(this::updateTableModel);
+        }
+    };
 
     private boolean newActionListenerInProgress = false;
     private boolean editActionListenerInProgress = false;
@@ -42,25 +82,88 @@ public class EPMPasswordsPanel extends JPanel {
     private boolean showOrUpdateTOTPMenuItemActionListenerInProgress = false;
     private boolean showOrUpdateBackupCodesMenuItemActionListenerInProgress = false;
 
+    // The database is opened off the EDT, see AsyncPasswordManager.open().
     EPMPasswordsPanel(
         EPMFrame frame,
-        Path databasePath,
-        String databasePassword
+        AsyncPasswordManager asyncDb
     ) {
         this.frame = frame;
 
-        db = new PasswordManagerSQLite(
-            databasePath,
-            databasePassword
-        );
+        this.asyncDb = asyncDb;
+        this.db = asyncDb.getDatabase();
 
-        initPanelComponents();
+        db.addChangeListener(changeListener);
 
-        if (db.getPasswordsCount() > 0) {
-            passwordsTable.addRowSelectionInterval(0, 0);
-        }
+        initPanel();
+    }
+
+    private void initPanel() {
+        initPanelComponents();
 
         enableTools();
+
+        // The table is empty until the entries are loaded.
+        long request = ++tableModelRequest;
+        isTableModelReloading = true;
+
+        asyncDb.getPasswordsCount().thenCompose(count -> {
+            if (count >= LAZY_LOADING_THRESHOLD) {
+                isTableModelReloading = false;
+
+                return useLazyTableModel();
+            }
+
+            return asyncDb.fetchEntries().thenAccept(entries -> {
+                if (request != tableModelRequest) {
+                    return;
+                }
+
+                isTableModelReloading = false;
+                setTableEntries(entries);
+            });
+        }).thenRun(() -> {
+            if (passwordsTable.getRowCount() > 0 && passwordsTable.getSelectedRow() == -1) {
+                passwordsTable.addRowSelectionInterval(0, 0);
+            }
+
+            enableToolsOnSelection();
+        });
+    }
+
+    // Rows are fetched as they are shown, sorted and filtered by the database.
+    private CompletableFuture<Void> useLazyTableModel() {
+        lazyTableModel = new LazyPasswordsTableModel(asyncDb);
+        passwordsTableModel = lazyTableModel;
+
+        passwordsTable.setAutoCreateRowSorter(false);
+        passwordsTable.setRowSorter(null);
+        passwordsTable.setModel(lazyTableModel);
+
+        // The selected row has no id until its block is loaded, the row actions wait for it.
+        // Later, since the table handles the event after this listener.
+        lazyTableModel.addTableModelListener(event -> SwingUtilities.invokeLater(this::enableToolsOnSelection));
+
+        // Clicking the header of Website or Username/Email sorts by it, the others sort by id.
+        passwordsTable.getTableHeader().addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent event) {
+                int column = passwordsTable.convertColumnIndexToModel(
+                    passwordsTable.columnAtPoint(event.getPoint())
+                );
+
+                PasswordPage.SortColumn sortColumn = switch (column) {
+                    case PasswordsTableModel.WEBSITE_COLUMN -> PasswordPage.SortColumn.WEBSITE;
+                    case PasswordsTableModel.USERNAME_COLUMN -> PasswordPage.SortColumn.USERNAME;
+                    default -> PasswordPage.SortColumn.ID;
+                };
+
+                keepLazySelection(() -> lazyTableModel.setSortColumn(sortColumn));
+            }
+        });
+
+        lazyTableModel.setFilter(filterTextField.getText());
+
+        return lazyTableModel.reload();
     }
 
     private void enableTools() {
@@ -77,10 +180,42 @@ public class EPMPasswordsPanel extends JPanel {
         frame.showOrUpdateBackupCodesMenuItem.addActionListener(e -> showOrUpdateBackupCodesMenuItemActionListener());
     }
 
+    private void disableTools() {
+        JMenuItem[] menuItems = {
+            frame.newPasswordMenuItem,
+            frame.editPasswordMenuItem,
+            frame.deletePasswordMenuItem,
+            frame.copyWebsiteMenuItem,
+            frame.copyUsernameMenuItem,
+            frame.copyPasswordMenuItem,
+            frame.showOrUpdateTOTPMenuItem,
+            frame.showOrUpdateBackupCodesMenuItem
+        };
+
+        // The listeners were registered by this panel, they must not outlive the database.
+        for (JMenuItem menuItem : menuItems) {
+            for (ActionListener actionListener : menuItem.getActionListeners()) {
+                menuItem.removeActionListener(actionListener);
+            }
+
+            menuItem.setEnabled(false);
+        }
+    }
+
+    // Locks the database session, called by the frame when the database is closed.
+    protected void closeDatabase() {
+        disableTools();
+
+        db.removeChangeListener(changeListener);
+
+        // Closed once the pending calls are done.
+        asyncDb.close();
+    }
+
     private void enableToolsOnSelection() {
         boolean status = true;
 
-        if (passwordsTable.getSelectedRow() == -1) {
+        if (getSelectedPasswordId() == -1) {
             status = false;
         }
 
@@ -93,33 +228,13 @@ public class EPMPasswordsPanel extends JPanel {
         frame.showOrUpdateBackupCodesMenuItem.setEnabled(status);
     }
 
-    private Object[][] databaseDataToTableData() {
-        List<String[]> passwords = db.fetchPasswords();
-        int passwordsSize = passwords.size();
-
-        Object[][] convertedPasswords = new Object[passwordsSize][];
-
-        for (int i = 0; i < passwordsSize; i++) {
-            Object[] row = passwords.get(i);
-
-            if (row[5].equals("1")) {
-                row[5] = "Yes";
-            } else {
-                row[5] = "No";
-            }
-
-            convertedPasswords[i] = row;
-        }
-
-        return convertedPasswords;
-    }
-
     private void initPanelComponents() {
         // Enabling closeMenuItem
         frame.closeMenuItem.setEnabled(true);
 
         JScrollPane scrollPane = new JScrollPane();
         passwordsTable = new CustomTable();
+        filterTextField = new JTextField();
 
         JPopupMenu passwordPopupMenu = new JPopupMenu();
         JMenuItem newPasswordMenuItem = new JMenuItem();
@@ -131,13 +246,38 @@ public class EPMPasswordsPanel extends JPanel {
         JMenuItem showOrUpdateTOTPMenuItem = new JMenuItem();
         JMenuItem showOrUpdateBackupCodesMenuItem = new JMenuItem();
 
-        setLayout(new MigLayout("insets 0, fill"));
+        setLayout(new MigLayout("insets 0, fill", "[grow]", "[][grow]"));
+
+        // filterTextField
+        {
+            filterTextField.putClientProperty(FlatClientProperties.PLACEHOLDER_TEXT, "Search websites and usernames");
+            filterTextField.putClientProperty(FlatClientProperties.TEXT_FIELD_SHOW_CLEAR_BUTTON, true);
+
+            // Filtered on every keystroke, from the in-memory index of the database.
+            filterTextField.getDocument().addDocumentListener(new DocumentListener() {
+                @Override
+                public void insertUpdate(DocumentEvent event) {
+                    applyFilter();
+                }
+
+                @Override
+                public void removeUpdate(DocumentEvent event) {
+                    applyFilter();
+                }
+
+                @Override
+                public void changedUpdate(DocumentEvent event) {
+                    applyFilter();
+                }
+            });
+
+            add(filterTextField, "growx, wrap");
+        }
 
         // scrollPane
         {
             // table
-            passwordsTableModel = getTableModel();
-
+            // The table only gets what it shows, secrets are fetched by id when copied or edited.
             passwordsTable.setModel(passwordsTableModel);
 
             passwordsTable.setAutoCreateRowSorter(true);
@@ -157,11 +297,6 @@ public class EPMPasswordsPanel extends JPanel {
             scrollPane.getVerticalScrollBar().setBorder(null);
         }
 
-        // Hiding the Id Column, but it will be still accessible by the code.
-        passwordsTable.removeColumn(
-            passwordsTable.getColumnModel().getColumn(0)
-        );
-
         add(scrollPane, "grow");
 
         // passwordPopupMenu
@@ -234,51 +369,197 @@ public class EPMPasswordsPanel extends JPanel {
         });
     }
 
-    private DefaultTableModel getTableModel() {
-        return new DefaultTableModel(
-            databaseDataToTableData(),
-            new String[] {
-                "Id", "Website", "Username/Email", "Passwords", "OTP", "Has Backup Code", "Note"
+    // Reloads the table once the writes submitted before are done.
+    protected void updateTableModel() {
+        if (lazyTableModel != null) {
+            keepLazySelection(() -> lazyTableModel.reload());
+
+            return;
+        }
+
+        long request = ++tableModelRequest;
+        isTableModelReloading = true;
+
+        asyncDb.fetchEntries().thenAccept(entries -> {
+            if (request == tableModelRequest) {
+                isTableModelReloading = false;
+                setTableEntries(entries);
             }
-        ) {
-            Class<?>[] columnTypes = {
-                String.class, String.class, String.class, String.class, String.class, String.class, String.class
-            };
+        });
+    }
 
-            boolean[] columnEditable = {
-                false, false, false, false, false, false, false
-            };
+    // Called on a writing thread by changeListener.
+    private void putRowLater(PasswordEntry entry) {
+        // Written before changeListener was added.
+        if (entry == null) {
+            SwingUtilities.invokeLater(this::updateTableModel);
 
-            @Override
-            public Class<?> getColumnClass(int columnIndex) {
-                return columnTypes[columnIndex];
+            return;
+        }
+
+        SwingUtilities.invokeLater(() -> putRow(entry));
+    }
+
+    // Inserts or replaces the row of the entry, the other rows are left as they are.
+    private void putRow(PasswordEntry entry) {
+        // The reload may have been read before the write, it's done again.
+        if (isTableModelReloading) {
+            updateTableModel();
+
+            return;
+        }
+
+        if (lazyTableModel != null) {
+            keepLazySelection(() -> lazyTableModel.putEntry(entry));
+
+            return;
+        }
+
+        passwordsTableModel.putEntry(entry);
+
+        refilter();
+    }
+
+    private void removeRow(int passwordId) {
+        if (isTableModelReloading) {
+            updateTableModel();
+
+            return;
+        }
+
+        if (lazyTableModel != null) {
+            keepLazySelection(() -> lazyTableModel.removeEntry(passwordId));
+
+            return;
+        }
+
+        passwordsTableModel.removeEntry(passwordId);
+
+        refilter();
+    }
+
+    // The matching ids of the filter were computed before the change.
+    private void refilter() {
+        if (lazyTableModel == null && !filterTextField.getText().isEmpty()) {
+            applyFilter();
+        } else {
+            enableToolsOnSelection();
+        }
+    }
+
+    // The selected password and the scroll position are kept.
+    private void setTableEntries(List<PasswordEntry> entries) {
+        int selectedPasswordId = getSelectedPasswordId();
+        Rectangle visibleRect = passwordsTable.getVisibleRect();
+
+        memoryTableModel.setEntries(entries);
+
+        applyFilter().thenRun(() -> {
+            int selectedRow = memoryTableModel.getRowOf(selectedPasswordId);
+
+            if (selectedRow != -1) {
+                selectedRow = passwordsTable.convertRowIndexToView(selectedRow);
             }
 
-            @Override
-            public boolean isCellEditable(int rowIndex, int columnIndex) {
-                return columnEditable[columnIndex];
+            if (selectedRow != -1) {
+                passwordsTable.setRowSelectionInterval(selectedRow, selectedRow);
             }
-        };
+
+            passwordsTable.scrollRectToVisible(visibleRect);
+
+            enableToolsOnSelection();
+        });
     }
 
-    protected void updateTableModel() {
-        passwordsTableModel = getTableModel();
+    // Only the rows of the passwords matching filterTextField are shown, the previous
+    // filter is kept until the matching ids are known.
+    private CompletableFuture<Void> applyFilter() {
+        // Filtered by the database, the index of filter() would hold every password.
+        if (lazyTableModel != null) {
+            return keepLazySelection(() -> lazyTableModel.setFilter(filterTextField.getText()));
+        }
 
-        passwordsTable.setModel(passwordsTableModel);
+        long request = ++filterRequest;
+        String query = filterTextField.getText();
 
-        // Hiding the Id Column, but it will be still accessible by the code.
-        passwordsTable.removeColumn(
-            passwordsTable.getColumnModel().getColumn(0)
-        );
+        CompletableFuture<int[]> matchingIdsFuture = query.isEmpty()
+            ? CompletableFuture.completedFuture(null)
+            : asyncDb.filter(query);
+
+        return matchingIdsFuture.thenAccept(passwordIds -> {
+            // The user typed again before the ids were found.
+            if (request != filterRequest) {
+                return;
+            }
+
+            @SuppressWarnings("unchecked")
+            TableRowSorter<TableModel> rowSorter = (TableRowSorter<TableModel>) passwordsTable.getRowSorter();
+
+            RowFilter<TableModel, Integer> rowFilter = null;
+
+            if (passwordIds != null) {
+                BitSet matchingIds = new BitSet();
+
+                for (int passwordId : passwordIds) {
+                    matchingIds.set(passwordId);
+                }
+
+                rowFilter = new RowFilter<>() {
+                    @Override
+                    public boolean include(Entry<? extends TableModel, ? extends Integer> entry) {
+                        return matchingIds.get(memoryTableModel.getIdAt(entry.getIdentifier()));
+                    }
+                };
+            }
+
+            rowSorter.setRowFilter(rowFilter);
+
+            // The selected row may have been filtered out.
+            enableToolsOnSelection();
+        });
+    }
+
+    // The reloads of the lazy model drop the selection, the selected password is selected
+    // again once its row is known. Its rows don't move otherwise, there's no row sorter.
+    private CompletableFuture<Void> keepLazySelection(Runnable change) {
+        int selectedPasswordId = getSelectedPasswordId();
+        CompletableFuture<Void> previousReload = lazyTableModel.whenReloaded();
+
+        change.run();
+
+        // Changed in place.
+        if (lazyTableModel.whenReloaded() == previousReload) {
+            enableToolsOnSelection();
+
+            return CompletableFuture.completedFuture(null);
+        }
+
+        return lazyTableModel.whenReloaded()
+            .thenCompose(v -> lazyTableModel.locate(selectedPasswordId))
+            .thenAccept(row -> {
+                // Unless another row was selected meanwhile.
+                if (row != -1 && passwordsTable.getSelectedRow() == -1) {
+                    passwordsTable.setRowSelectionInterval(row, row);
+                    passwordsTable.scrollRectToVisible(passwordsTable.getCellRect(row, 0, true));
+                }
+
+                enableToolsOnSelection();
+            });
     }
 
+    // -1 if no row is selected, or if the row is not loaded yet (lazy model).
     private int getSelectedPasswordId() {
-        int selectedRow = passwordsTable.getSelectedRow();
-        return Integer.parseInt((String) passwordsTableModel.getValueAt(selectedRow, 0));
+        if (passwordsTable.getSelectedRow() == -1) {
+            return -1;
+        }
+
+        // The table is sorted and filtered, its rows are not the rows of the model.
+        int selectedRow = passwordsTable.convertRowIndexToModel(passwordsTable.getSelectedRow());
+        return passwordsTableModel.getIdAt(selectedRow);
     }
 
     private void copyPasswordMenuItemActionListener() {
-        if (copyPasswordActionListenerInProgress) {
+        if (copyPasswordActionListenerInProgress || getSelectedPasswordId() == -1) {
             return;
         }
 
@@ -286,14 +567,11 @@ public class EPMPasswordsPanel extends JPanel {
 
         int passwordId = getSelectedPasswordId();
 
-        String password = db.fetchPassword(passwordId);
-        EPMUtilities.copyToClipboard(password);
-
-        SwingUtilities.invokeLater(() -> copyPasswordActionListenerInProgress = false);
+        copyToClipboard(asyncDb.fetchPassword(passwordId), () -> copyPasswordActionListenerInProgress = false);
     }
 
     private void copyUsernameMenuItemActionListener() {
-        if (copyUsernameActionListenerInProgress) {
+        if (copyUsernameActionListenerInProgress || getSelectedPasswordId() == -1) {
             return;
         }
 
@@ -301,14 +579,11 @@ public class EPMPasswordsPanel extends JPanel {
 
         int passwordId = getSelectedPasswordId();
 
-        String username = db.fetchUsername(passwordId);
-        EPMUtilities.copyToClipboard(username);
-
-        SwingUtilities.invokeLater(() -> copyUsernameActionListenerInProgress = false);
+        copyToClipboard(asyncDb.fetchUsername(passwordId), () -> copyUsernameActionListenerInProgress = false);
     }
 
     private void copyWebsiteMenuItemActionListener() {
-        if (copyWebsiteActionListenerInProgress) {
+        if (copyWebsiteActionListenerInProgress || getSelectedPasswordId() == -1) {
             return;
         }
 
@@ -316,14 +591,24 @@ public class EPMPasswordsPanel extends JPanel {
 
         int passwordId = getSelectedPasswordId();
 
-        String website = db.fetchWebsite(passwordId);
-        EPMUtilities.copyToClipboard(website);
+        copyToClipboard(asyncDb.fetchWebsite(passwordId), () -> copyWebsiteActionListenerInProgress = false);
+    }
 
-        SwingUtilities.invokeLater(() -> copyWebsiteActionListenerInProgress = false);
+    // Copied on the EDT once fetched, done runs either way.
+    private void copyToClipboard(CompletableFuture<String> value, Runnable done) {
+        value.whenComplete((text, e) -> {
+            if (e != null) {
+                e.printStackTrace(System.err);
+            } else {
+                EPMUtilities.copyToClipboard(text);
+            }
+
+            done.run();
+        });
     }
 
     private void deletePasswordMenuItemActionListener() {
-        if (deleteActionListenerInProgress) {
+        if (deleteActionListenerInProgress || getSelectedPasswordId() == -1) {
             return;
         }
 
@@ -331,16 +616,19 @@ public class EPMPasswordsPanel extends JPanel {
 
         int passwordId = getSelectedPasswordId();
 
-        db.deletePassword(passwordId);
+        asyncDb.deletePassword(passwordId).whenComplete((value, e) -> {
+            if (e != null) {
+                e.printStackTrace(System.err);
+            }
 
-        updateTableModel();
-        enableTools();
+            deleteActionListenerInProgress = false;
+        });
 
-        SwingUtilities.invokeLater(() -> deleteActionListenerInProgress = false);
+        enableTools();
     }
 
     private void editPasswordMenuItemActionListener() {
-        if (editActionListenerInProgress) {
+        if (editActionListenerInProgress || getSelectedPasswordId() == -1) {
             return;
         }
 
@@ -354,7 +642,6 @@ public class EPMPasswordsPanel extends JPanel {
         );
 
         editPasswordDialog.setVisible(true);
-        updateTableModel();
         enableTools();
 
         SwingUtilities.invokeLater(() -> editActionListenerInProgress = false);
@@ -374,14 +661,13 @@ public class EPMPasswordsPanel extends JPanel {
         );
 
         addPasswordDialog.setVisible(true);
-        updateTableModel();
         enableTools();
 
         SwingUtilities.invokeLater(() -> newActionListenerInProgress = false);
     }
 
     private void showOrUpdateBackupCodesMenuItemActionListener() {
-        if (showOrUpdateBackupCodesMenuItemActionListenerInProgress) {
+        if (showOrUpdateBackupCodesMenuItemActionListenerInProgress || getSelectedPasswordId() == -1) {
             return;
         }
 
@@ -395,14 +681,13 @@ public class EPMPasswordsPanel extends JPanel {
         );
 
         backupCodesDialog.setVisible(true);
-        updateTableModel();
         enableTools();
 
         SwingUtilities.invokeLater(() -> showOrUpdateBackupCodesMenuItemActionListenerInProgress = false);
     }
 
     private void showOrUpdateTOTPMenuItemActionListener() {
-        if (showOrUpdateTOTPMenuItemActionListenerInProgress) {
+        if (showOrUpdateTOTPMenuItemActionListenerInProgress || getSelectedPasswordId() == -1) {
             return;
         }
 
@@ -415,7 +700,6 @@ public class EPMPasswordsPanel extends JPanel {
         );
 
         totpDialog.setVisible(true);
-        updateTableModel();
         enableTools();
 
         SwingUtilities.invokeLater(() -> showOrUpdateTOTPMenuItemActionListenerInProgress = false);
@@ -48,6 +48,8 @@ public class EPMTOTPDialog extends JDialog {
 
     private Timer timer;
 
+    private String storedOTPKey; // null until it's fetched.
+
     EPMTOTPDialog(
         Window owner,
         EPMPasswordsPanel passwordsPanel,
@@ -65,21 +67,29 @@ public class EPMTOTPDialog extends JDialog {
         // Show revel password button for toptPasswordField
         totpPasswordField.putClientProperty(FlatClientProperties.STYLE, "showRevealButton: true");
 
-        String otpKey = this.passwordsPanel.db.fetchOTP(this.passwordId);
+        // Nothing can be updated before the stored key is known.
+        setButtonsEnabled(false);
 
-        if (!otpKey.isEmpty()) {
-            localtOTPTimer = new tOTPTimer(
-                totpLabel,
-                otpKey
-            );
+        this.passwordsPanel.asyncDb.fetchOTP(this.passwordId).whenComplete((otpKey, e) -> {
+            if (e != null) {
+                EPMUtilities.showError(this, "TOTP", e);
+                cancelButtonActionListener();
 
-            this.timer = new Timer();
-            this.timer.schedule(localtOTPTimer, 0, 1000);
+                return;
+            }
 
-            isLocaltOTPTimerRunning = true;
+            storedOTPKey = otpKey;
 
             totpPasswordField.setText(otpKey);
-        }
+            showTOTP(otpKey);
+
+            setButtonsEnabled(true);
+        });
+    }
+
+    private void setButtonsEnabled(boolean status) {
+        okButton.setEnabled(status);
+        updateTOTPButton.setEnabled(status);
     }
 
     public void initDialogComponents() {
@@ -170,21 +180,44 @@ public class EPMTOTPDialog extends JDialog {
     }
 
     private void okButtonActionListener() {
-        updateTOTPButtonActionListener();
-
-        cancelButtonActionListener();
+        updateTOTP(() -> cancelButtonActionListener());
     }
 
     private void updateTOTPButtonActionListener() {
+        updateTOTP(() -> {});
+    }
+
+    // Stores the key of totpPasswordField if it changed, then runs done.
+    // The dialog is left as it is if the key cannot be stored.
+    private void updateTOTP(Runnable done) {
         String otpKey = String.valueOf(totpPasswordField.getPassword());
-        String storedOTPKey = passwordsPanel.db.fetchOTP(this.passwordId);
 
         if (otpKey.equals(storedOTPKey)) {
+            done.run();
+
             return;
         }
 
-        passwordsPanel.db.modifyOTP(this.passwordId, otpKey);
+        setButtonsEnabled(false);
+
+        passwordsPanel.asyncDb.modifyOTP(this.passwordId, otpKey).whenComplete((value, e) -> {
+            setButtonsEnabled(true);
+
+            if (e != null) {
+                EPMUtilities.showError(this, "TOTP", e);
+
+                return;
+            }
+
+            storedOTPKey = otpKey;
+            showTOTP(otpKey);
+
+            done.run();
+        });
+    }
 
+    // Starts, updates or stops the code shown by totpLabel.
+    private void showTOTP(String otpKey) {
         if (isLocaltOTPTimerRunning) {
             localtOTPTimer.totpKey = otpKey;
         }
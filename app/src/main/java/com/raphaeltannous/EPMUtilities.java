@@ -1,11 +1,13 @@
 package com.raphaeltannous;
 
+import java.awt.Component;
 import java.awt.Toolkit;
 import java.awt.datatransfer.Clipboard;
 import java.awt.datatransfer.StringSelection;
 import java.beans.PropertyChangeEvent;
 import java.util.Objects;
 
+import javax.swing.JOptionPane;
 import javax.swing.SwingUtilities;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
@@ -69,4 +71,13 @@ public class EPMUtilities {
         clipboard.setContents(selection, null);
     }
 
+    // Tells the user that a database call of a dialog failed, e is the failure of its future.
+    public static void showError(Component parentComponent, String title, Throwable e) {
+        e.printStackTrace(System.err);
+
+        String message = e.getMessage() == null ? e.toString() : e.getMessage();
+
+        JOptionPane.showMessageDialog(parentComponent, message, title, JOptionPane.ERROR_MESSAGE);
+    }
+
 }
@@ -0,0 +1,325 @@
+package com.raphaeltannous;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * EntryCache
+ *
+ * Least recently used fields of the passwords, keyed by password id and field, so
+ * that copying the same password or otp again doesn't query the database. The cache
+ * is bounded by the number of chars it holds. Values are kept as char[] and zeroed
+ * when they leave the cache, the secrets only stay for secretTtl.
+ */
+public class EntryCache implements AutoCloseable {
+    public static final int DEFAULT_MAX_CHARS = 1 << 16;
+    public static final Duration DEFAULT_SECRET_TTL = Duration.ofSeconds(30);
+
+    // Approximate cost of an entry besides its chars.
+    private static final int ENTRY_OVERHEAD_CHARS = 32;
+
+    public enum Field {
+        WEBSITE(false),
+        USERNAME(false),
+        PASSWORD(true),
+        OTP(true),
+        NOTE(true),
+        HAS_BACKUP_CODES(false);
+
+        private final boolean isSecret;
+
+        Field(boolean isSecret) {
+            this.isSecret = isSecret;
+        }
+
+        public boolean isSecret() {
+            return isSecret;
+        }
+    }
+
+    public record Statistics(
+        long hits,
+        long misses,
+        long evictions,
+        long expirations,
+        int entries,
+        long chars
+    ) {
+        public double hitRatio() {
+            long lookups = hits + misses;
+
+            if (lookups == 0) {
+                return 0;
+            }
+
+            return (double) hits / lookups;
+        }
+    }
+
+    private record Key(int passwordId, Field field) {}
+
+    // Only the secrets expire.
+    private record Value(char[] chars, boolean isSecret, long expiresAtNanos) {
+        int weight() {
+            return chars.length + ENTRY_OVERHEAD_CHARS;
+        }
+
+        boolean isExpired(long nowNanos) {
+            return isSecret && expiresAtNanos - nowNanos <= 0;
+        }
+    }
+
+    private final int maxChars;
+    private final long secretTtlNanos;
+
+    private final LinkedHashMap<Key, Value> values = new LinkedHashMap<>(16, 0.75f, true);
+    private long chars = 0;
+
+    // Bumped by every invalidation, a value read before it is not cached.
+    private long generation = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long expirations = 0;
+
+    // Zeroes the expired secrets even if nobody reads them anymore, started with the first secret.
+    private ScheduledExecutorService sweeper;
+    private boolean isClosed = false;
+
+    // A zero secretTtl doesn't cache the secrets at all.
+    public EntryCache(int maxChars, Duration secretTtl) {
+        if (maxChars < 0) {
+            throw new IllegalArgumentException("maxChars cannot be negative.");
+        }
+
+        if (secretTtl.isNegative()) {
+            throw new IllegalArgumentException("secretTtl cannot be negative.");
+        }
+
+        this.maxChars = maxChars;
+        this.secretTtlNanos = secretTtl.toNanos();
+    }
+
+    public EntryCache() {
+        this(DEFAULT_MAX_CHARS, DEFAULT_SECRET_TTL);
+    }
+
+    public synchronized long generation() {
+        return generation;
+    }
+
+    // null when the field is not cached.
+    public synchronized String get(int passwordId, Field field) {
+        char[] chars = lookup(new Key(passwordId, field));
+
+        if (chars == null) {
+            misses++;
+
+            return null;
+        }
+
+        hits++;
+
+        return new String(chars);
+    }
+
+    // All the fields or null if one of them is not cached, counted as one lookup.
+    public synchronized String[] get(int passwordId, Field[] fields) {
+        String[] result = new String[fields.length];
+
+        for (int i = 0; i < fields.length; i++) {
+            char[] chars = lookup(new Key(passwordId, fields[i]));
+
+            if (chars == null) {
+                misses++;
+
+                return null;
+            }
+
+            result[i] = new String(chars);
+        }
+
+        hits++;
+
+        return result;
+    }
+
+    // Ignored if something was invalidated since generation was read.
+    public synchronized void put(int passwordId, Field field, String value, long generation) {
+        if (isClosed || generation != this.generation || value == null) {
+            return;
+        }
+
+        long expiresAtNanos = 0;
+
+        if (field.isSecret()) {
+            if (secretTtlNanos == 0) {
+                return;
+            }
+
+            expiresAtNanos = System.nanoTime() + secretTtlNanos;
+            startSweeper();
+        }
+
+        Value cached = new Value(value.toCharArray(), field.isSecret(), expiresAtNanos);
+
+        if (cached.weight() > maxChars) {
+            zero(cached);
+
+            return;
+        }
+
+        Value previous = values.put(new Key(passwordId, field), cached);
+
+        if (previous != null) {
+            chars -= previous.weight();
+            zero(previous);
+        }
+
+        chars += cached.weight();
+
+        // Least recently used first.
+        Iterator<Value> iterator = values.values().iterator();
+
+        while (chars > maxChars && iterator.hasNext()) {
+            Value eldest = iterator.next();
+
+            iterator.remove();
+            chars -= eldest.weight();
+            zero(eldest);
+
+            evictions++;
+        }
+    }
+
+    public synchronized void invalidate(int passwordId) {
+        generation++;
+
+        for (Field field : Field.values()) {
+            remove(new Key(passwordId, field));
+        }
+    }
+
+    public synchronized void invalidate(int passwordId, Field field) {
+        generation++;
+
+        remove(new Key(passwordId, field));
+    }
+
+    // The field of every password, when the changed password is not known.
+    public synchronized void invalidate(Field field) {
+        generation++;
+
+        values.entrySet().removeIf(entry -> {
+            if (entry.getKey().field() != field) {
+                return false;
+            }
+
+            chars -= entry.getValue().weight();
+            zero(entry.getValue());
+
+            return true;
+        });
+    }
+
+    public synchronized void clear() {
+        generation++;
+
+        for (Value value : values.values()) {
+            zero(value);
+        }
+
+        values.clear();
+        chars = 0;
+    }
+
+    public synchronized Statistics getStatistics() {
+        return new Statistics(hits, misses, evictions, expirations, values.size(), chars);
+    }
+
+    private char[] lookup(Key key) {
+        Value value = values.get(key);
+
+        if (value == null) {
+            return null;
+        }
+
+        if (value.isExpired(System.nanoTime())) {
+            remove(key);
+
+            expirations++;
+
+            return null;
+        }
+
+        return value.chars();
+    }
+
+    private void remove(Key key) {
+        Value value = values.remove(key);
+
+        if (value != null) {
+            chars -= value.weight();
+            zero(value);
+        }
+    }
+
+    private synchronized void sweep() {
+        long now = System.nanoTime();
+
+        // Iterating the values doesn't count as an access.
+        Iterator<Map.Entry<Key, Value>> iterator = values.entrySet().iterator();
+
+        while (iterator.hasNext()) {
+            Value value = iterator.next().getValue();
+
+            if (value.isExpired(now)) {
+                iterator.remove();
+                chars -= value.weight();
+                zero(value);
+
+                expirations++;
+            }
+        }
+    }
+
+    private void startSweeper() {
+        if (sweeper != null) {
+            return;
+        }
+
+        sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "EntryCache-sweeper");
+            thread.setDaemon(true);
+
+            return thread;
+        });
+
+        long periodNanos = Math.min(secretTtlNanos, TimeUnit.SECONDS.toNanos(1));
+
+        sweeper.scheduleWithFixedDelay(this::sweep, periodNanos, periodNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private static void zero(Value value) {
+        Arrays.fill(value.chars(), '\0');
+    }
+
+    @Override
+    public synchronized void close() {
+        isClosed = true;
+
+        clear();
+
+        if (sweeper != null) {
+            sweeper.shutdownNow();
+            sweeper = null;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.raphaeltannous;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * EntryPatch
+ *
+ * The fields of a password that changed, applied with
+ * PasswordManagerInterface.updateEntry(). Fields that are not set are kept.
+ */
+public class EntryPatch {
+    // Column -> new value, in the order they were set.
+    private final Map<String, String> changes = new LinkedHashMap<>();
+
+    public EntryPatch website(String newWebsite) {
+        if (newWebsite.isEmpty()) {
+            throw new IllegalArgumentException("newWebsite cannot be empty.");
+        }
+
+        changes.put("website", newWebsite);
+        return this;
+    }
+
+    public EntryPatch username(String newUsername) {
+        if (newUsername.isEmpty()) {
+            throw new IllegalArgumentException("newUsername cannot be empty.");
+        }
+
+        changes.put("username", newUsername);
+        return this;
+    }
+
+    public EntryPatch password(String newPassword) {
+        if (newPassword.isEmpty()) {
+            throw new IllegalArgumentException("newPassword cannot be empty.");
+        }
+
+        changes.put("password", newPassword);
+        return this;
+    }
+
+    public EntryPatch otp(String newOTP) { // if newOTP is empty, then remove OTP.
+        changes.put("otp", newOTP);
+        return this;
+    }
+
+    public EntryPatch note(String newNote) { // if newNote is empty, then remove note.
+        changes.put("note", newNote);
+        return this;
+    }
+
+    public boolean isEmpty() {
+        return changes.isEmpty();
+    }
+
+    public Map<String, String> getChanges() {
+        return Collections.unmodifiableMap(changes);
+    }
+
+    // The changes of the columns accepted by filter, in the same order.
+    EntryPatch retain(Predicate<String> filter) {
+        EntryPatch patch = new EntryPatch();
+
+        changes.forEach((column, value) -> {
+            if (filter.test(column)) {
+                patch.changes.put(column, value);
+            }
+        });
+
+        return patch;
+    }
+
+    // "website = ?, note = ?", the values are bound in the same order by getValues().
+    String getSetClause() {
+        return String.join(" = ?, ", changes.keySet()) + " = ?";
+    }
+
+    String[] getValues() {
+        return changes.values().toArray(new String[0]);
+    }
+}
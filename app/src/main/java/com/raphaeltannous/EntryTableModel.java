@@ -0,0 +1,21 @@
+package com.raphaeltannous;
+
+import javax.swing.table.TableModel;
+
+/**
+ * EntryTableModel
+ *
+ * Model of the passwords table, whose rows are PasswordEntry. The id of an entry
+ * is not a column, it's read with getIdAt().
+ */
+public interface EntryTableModel extends TableModel {
+    // -1 if the row is not loaded yet.
+    public int getIdAt(int row);
+
+    // -1 if the password has no row, or it's not loaded.
+    public int getRowOf(int passwordId);
+
+    // Applies a change of the database to the row of the entry.
+    public void putEntry(PasswordEntry entry);
+    public void removeEntry(int passwordId);
+}
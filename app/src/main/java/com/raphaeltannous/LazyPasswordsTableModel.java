@@ -0,0 +1,339 @@
+package com.raphaeltannous;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import javax.swing.table.AbstractTableModel;
+
+/**
+ * LazyPasswordsTableModel
+ *
+ * Passwords table of large databases. Only the number of rows is known up front,
+ * the rows are fetched in blocks of BLOCK_SIZE when the table paints them and the
+ * last MAX_CACHED_BLOCKS blocks are kept. Sorting and filtering are done by the
+ * database, each block is a keyset page (PasswordManagerInterface.fetchPage())
+ * starting at the key of the block, so that its cost doesn't grow with its row.
+ *
+ * Like the other Swing models it must only be used from the EDT.
+ */
+public class LazyPasswordsTableModel extends AbstractTableModel implements EntryTableModel {
+    public static final int BLOCK_SIZE = 256;
+    public static final int MAX_CACHED_BLOCKS = 8;
+
+    private static final String LOADING_TEXT = "Loading...";
+
+    private final AsyncPasswordManager asyncDb;
+
+    private PasswordPage.SortColumn sortColumn = PasswordPage.SortColumn.ID;
+    private String filter = "";
+
+    private int rowCount = 0;
+
+    // Bumped by reload(), the blocks fetched before are dropped.
+    private long generation = 0;
+
+    // Least recently painted blocks are dropped first.
+    private final Map<Integer, PasswordEntry[]> blocks = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, PasswordEntry[]> eldest) {
+            return size() > MAX_CACHED_BLOCKS;
+        }
+    };
+
+    private final Map<Integer, CompletableFuture<Void>> loadingBlocks = new HashMap<>();
+
+    // Key after which a block starts, known from the last entry of the previous block or
+    // from fetchPageKeys(). Kept when the blocks are dropped, they are fetched again from it.
+    private final Map<Integer, PasswordPage.Key> blockKeys = new HashMap<>();
+    private CompletableFuture<Void> blockKeysLoaded; // null until a block is loaded out of order.
+
+    private CompletableFuture<Void> reloaded = CompletableFuture.completedFuture(null);
+
+    public LazyPasswordsTableModel(AsyncPasswordManager asyncDb) {
+        this.asyncDb = asyncDb;
+    }
+
+    public PasswordPage.SortColumn getSortColumn() {
+        return sortColumn;
+    }
+
+    public CompletableFuture<Void> setSortColumn(PasswordPage.SortColumn sortColumn) {
+        if (this.sortColumn == sortColumn) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        this.sortColumn = sortColumn;
+
+        return reload();
+    }
+
+    public String getFilter() {
+        return filter;
+    }
+
+    // Matched like PasswordManagerInterface.fetchPage(), empty to show every entry.
+    public CompletableFuture<Void> setFilter(String filter) {
+        if (this.filter.equals(filter)) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        this.filter = filter;
+
+        return reload();
+    }
+
+    // Counts the rows again and drops the loaded blocks, the first one is fetched right away.
+    public CompletableFuture<Void> reload() {
+        long reloadGeneration = ++generation;
+
+        blocks.clear();
+        loadingBlocks.clear();
+        blockKeys.clear();
+        blockKeysLoaded = null;
+
+        reloaded = asyncDb.countEntries(filter, null).thenAccept(count -> {
+            if (reloadGeneration != generation) {
+                return;
+            }
+
+            rowCount = count;
+
+            fireTableDataChanged();
+        });
+
+        loadBlock(0);
+
+        return reloaded;
+    }
+
+    // The last reload(), which putEntry() and removeEntry() may have started.
+    public CompletableFuture<Void> whenReloaded() {
+        return reloaded;
+    }
+
+    // Row of the password in the current order and filter, with its block loaded,
+    // -1 if it's not shown (or the model is reloaded meanwhile).
+    public CompletableFuture<Integer> locate(int passwordId) {
+        if (passwordId == -1) {
+            return CompletableFuture.completedFuture(-1);
+        }
+
+        long locateGeneration = generation;
+
+        return asyncDb.fetchEntry(passwordId).handle((entry, e) -> {
+            // The password was deleted.
+            if (e != null || locateGeneration != generation) {
+                return CompletableFuture.completedFuture(-1);
+            }
+
+            return asyncDb.countEntries(filter, PasswordPage.Key.after(sortColumn, entry));
+        }).thenCompose(row -> row).thenCompose(row -> {
+            if (locateGeneration != generation || row >= rowCount) {
+                return CompletableFuture.completedFuture(-1);
+            }
+
+            // Doesn't match the filter if another entry is at its row.
+            return loadBlock(row / BLOCK_SIZE).thenApply(v -> getIdAt(row) == passwordId ? row : -1);
+        });
+    }
+
+    @Override
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return PasswordsTableModel.COLUMN_NAMES.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return PasswordsTableModel.COLUMN_NAMES[column];
+    }
+
+    @Override
+    public Class<?> getColumnClass(int column) {
+        return String.class;
+    }
+
+    @Override
+    public boolean isCellEditable(int row, int column) {
+        return false;
+    }
+
+    @Override
+    public Object getValueAt(int row, int column) {
+        PasswordEntry entry = getEntry(row);
+
+        if (entry == null) {
+            return column == PasswordsTableModel.WEBSITE_COLUMN ? LOADING_TEXT : "";
+        }
+
+        return PasswordsTableModel.getCellValue(
+            column,
+            entry.website(),
+            entry.username(),
+            entry.hasOTP(),
+            entry.hasNote(),
+            entry.backupCodeCount(),
+            entry.unusedBackupCodeCount()
+        );
+    }
+
+    @Override
+    public int getIdAt(int row) {
+        PasswordEntry entry = getEntry(row);
+
+        return entry == null ? -1 : entry.id();
+    }
+
+    @Override
+    public int getRowOf(int passwordId) {
+        // Iterating doesn't count as an access of the blocks.
+        for (Map.Entry<Integer, PasswordEntry[]> block : blocks.entrySet()) {
+            PasswordEntry[] entries = block.getValue();
+
+            for (int i = 0; i < entries.length; i++) {
+                if (entries[i].id() == passwordId) {
+                    return block.getKey() * BLOCK_SIZE + i;
+                }
+            }
+        }
+
+        return -1;
+    }
+
+    // In place if the entry keeps its position and its match of the filter, reloaded otherwise.
+    @Override
+    public void putEntry(PasswordEntry entry) {
+        int row = getRowOf(entry.id());
+
+        if (row == -1) {
+            reload();
+
+            return;
+        }
+
+        PasswordEntry[] entries = blocks.get(row / BLOCK_SIZE);
+        PasswordEntry previous = entries[row % BLOCK_SIZE];
+
+        if (!previous.website().equals(entry.website()) || !previous.username().equals(entry.username())) {
+            reload();
+
+            return;
+        }
+
+        entries[row % BLOCK_SIZE] = entry;
+
+        fireTableRowsUpdated(row, row);
+    }
+
+    // The rows after it move up, so the blocks are fetched again.
+    @Override
+    public void removeEntry(int passwordId) {
+        reload();
+    }
+
+    // null while its block is being fetched.
+    private PasswordEntry getEntry(int row) {
+        int block = row / BLOCK_SIZE;
+        PasswordEntry[] entries = blocks.get(block);
+
+        if (entries == null) {
+            loadBlock(block);
+
+            return null;
+        }
+
+        int index = row % BLOCK_SIZE;
+
+        return index < entries.length ? entries[index] : null;
+    }
+
+    // Completes once the block is loaded, or dropped by a reload.
+    private CompletableFuture<Void> loadBlock(int block) {
+        if (blocks.containsKey(block)) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        CompletableFuture<Void> loading = loadingBlocks.get(block);
+
+        if (loading != null) {
+            return loading;
+        }
+
+        long blockGeneration = generation;
+
+        loading = keyOf(block).thenCompose(afterKey -> {
+            // Past the last entry, the rows are counted again by the reload that follows the change.
+            if (blockGeneration != generation || (block > 0 && afterKey == null)) {
+                return CompletableFuture.completedFuture(null);
+            }
+
+            return asyncDb.fetchPage(filter, afterKey, BLOCK_SIZE, sortColumn).thenAccept(page -> {
+                if (blockGeneration != generation) {
+                    return;
+                }
+
+                List<PasswordEntry> entries = page.entries();
+
+                blocks.put(block, entries.toArray(PasswordEntry[]::new));
+
+                if (page.hasNext()) {
+                    blockKeys.put(block + 1, page.nextKey());
+                }
+
+                int firstRow = block * BLOCK_SIZE;
+                int lastRow = Math.min(firstRow + entries.size(), rowCount) - 1;
+
+                if (lastRow >= firstRow) {
+                    fireTableRowsUpdated(firstRow, lastRow);
+                }
+            });
+        }).whenComplete((v, e) -> {
+            if (blockGeneration != generation) {
+                return;
+            }
+
+            loadingBlocks.remove(block);
+
+            if (e != null) {
+                e.printStackTrace(System.err);
+            }
+        });
+
+        if (!loading.isDone()) {
+            loadingBlocks.put(block, loading);
+        }
+
+        return loading;
+    }
+
+    // null for the first block, or if the block is past the last entry.
+    private CompletableFuture<PasswordPage.Key> keyOf(int block) {
+        if (block == 0 || blockKeys.containsKey(block)) {
+            return CompletableFuture.completedFuture(blockKeys.get(block));
+        }
+
+        // Scrolled past blocks that were never loaded, the keys of every block are fetched at once.
+        if (blockKeysLoaded == null) {
+            long keysGeneration = generation;
+
+            blockKeysLoaded = asyncDb.fetchPageKeys(filter, BLOCK_SIZE, sortColumn).thenAccept(keys -> {
+                if (keysGeneration != generation) {
+                    return;
+                }
+
+                for (int i = 0; i < keys.size(); i++) {
+                    blockKeys.putIfAbsent(i + 1, keys.get(i));
+                }
+            });
+        }
+
+        return blockKeysLoaded.thenApply(v -> blockKeys.get(block));
+    }
+}
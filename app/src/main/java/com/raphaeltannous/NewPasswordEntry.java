@@ -0,0 +1,41 @@
+package com.raphaeltannous;
+
+/**
+ * NewPasswordEntry
+ *
+ * A password that is not in the database yet, used by the bulk APIs.
+ * Website/Username/Password cannot be empty, otp and note are "" when absent.
+ */
+public record NewPasswordEntry(
+    String website,
+    String username,
+    String password,
+    String otp,
+    String note
+) {
+    public NewPasswordEntry {
+        if (website == null || website.isEmpty()) {
+            throw new IllegalArgumentException("website cannot be empty.");
+        }
+
+        if (username == null || username.isEmpty()) {
+            throw new IllegalArgumentException("username cannot be empty.");
+        }
+
+        if (password == null || password.isEmpty()) {
+            throw new IllegalArgumentException("password cannot be empty.");
+        }
+
+        if (otp == null) {
+            otp = "";
+        }
+
+        if (note == null) {
+            note = "";
+        }
+    }
+
+    public NewPasswordEntry(String website, String username, String password) {
+        this(website, username, password, "", "");
+    }
+}
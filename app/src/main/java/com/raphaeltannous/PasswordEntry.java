@@ -0,0 +1,114 @@
+package com.raphaeltannous;
+
+/**
+ * PasswordEntry
+ *
+ * A password of the database as returned by fetchEntries(). Only the columns needed
+ * to list it are loaded, the password, otp and note are fetched by id when asked for
+ * and are not kept by the entry.
+ */
+public final class PasswordEntry {
+    private final PasswordManagerInterface db;
+
+    private final int id;
+    private final String website;
+    private final String username;
+    private final boolean hasOTP;
+    private final boolean hasNote;
+    private final int backupCodeCount;
+    private final int unusedBackupCodeCount;
+
+    PasswordEntry(
+        PasswordManagerInterface db,
+        int id,
+        String website,
+        String username,
+        boolean hasOTP,
+        boolean hasNote,
+        int backupCodeCount,
+        int unusedBackupCodeCount
+    ) {
+        this.db = db;
+        this.id = id;
+        this.website = website;
+        this.username = username;
+        this.hasOTP = hasOTP;
+        this.hasNote = hasNote;
+        this.backupCodeCount = backupCodeCount;
+        this.unusedBackupCodeCount = unusedBackupCodeCount;
+    }
+
+    public int id() {
+        return id;
+    }
+
+    public String website() {
+        return website;
+    }
+
+    public String username() {
+        return username;
+    }
+
+    public boolean hasOTP() {
+        return hasOTP;
+    }
+
+    public boolean hasNote() {
+        return hasNote;
+    }
+
+    public boolean hasBackupCodes() {
+        return backupCodeCount > 0;
+    }
+
+    public int backupCodeCount() {
+        return backupCodeCount;
+    }
+
+    public int unusedBackupCodeCount() {
+        return unusedBackupCodeCount;
+    }
+
+    // Secrets, fetched by id on every call and never kept by the entry.
+    public String fetchPassword() {
+        return db.fetchPassword(id);
+    }
+
+    public String fetchOTP() {
+        return hasOTP ? db.fetchOTP(id) : "";
+    }
+
+    public String fetchNote() {
+        return hasNote ? db.fetchNote(id) : "";
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        if (this == object) {
+            return true;
+        }
+
+        if (!(object instanceof PasswordEntry entry)) {
+            return false;
+        }
+
+        return id == entry.id
+            && hasOTP == entry.hasOTP
+            && hasNote == entry.hasNote
+            && backupCodeCount == entry.backupCodeCount
+            && unusedBackupCodeCount == entry.unusedBackupCodeCount
+            && website.equals(entry.website)
+            && username.equals(entry.username);
+    }
+
+    @Override
+    public int hashCode() {
+        return Integer.hashCode(id);
+    }
+
+    @Override
+    public String toString() {
+        return "PasswordEntry[id=" + id + ", website=" + website + ", username=" + username + "]";
+    }
+}
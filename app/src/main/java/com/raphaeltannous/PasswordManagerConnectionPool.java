@@ -0,0 +1,354 @@
+package com.raphaeltannous;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * PasswordManagerConnectionPool
+ *
+ * A small pool of read-only connections (PRAGMA query_only) used for fetches,
+ * and one writer connection that is handed to a single thread at a time.
+ * Each connection keeps its own PreparedStatementCache.
+ */
+public class PasswordManagerConnectionPool implements AutoCloseable {
+    public static final int DEFAULT_READ_CONNECTIONS = 4;
+    public static final Duration DEFAULT_IDLE_TIMEOUT = Duration.ofMinutes(5);
+
+    private static final long ACQUIRE_TIMEOUT_SECONDS = 30;
+
+    @FunctionalInterface
+    public interface ConnectionFactory {
+        Connection openConnection(boolean isWriter) throws SQLException;
+    }
+
+    public record Statistics(
+        int readConnectionsOpen,
+        int readConnectionsInUse,
+        long readAcquires,
+        long writeAcquires,
+        long totalAcquireWaitNanos,
+        long maxAcquireWaitNanos,
+        long evictedConnections,
+        long statementCacheHits,
+        long statementCacheMisses
+    ) {
+        public long acquires() {
+            return readAcquires + writeAcquires;
+        }
+
+        public double statementCacheHitRatio() {
+            long lookups = statementCacheHits + statementCacheMisses;
+
+            if (lookups == 0) {
+                return 0;
+            }
+
+            return (double) statementCacheHits / lookups;
+        }
+
+        public double averageAcquireWaitMillis() {
+            if (acquires() == 0) {
+                return 0;
+            }
+
+            return totalAcquireWaitNanos / 1_000_000.0 / acquires();
+        }
+    }
+
+    private record IdleConnection(PreparedStatementCache connection, long idleSinceNanos) {}
+
+    private final ConnectionFactory connectionFactory;
+
+    private final int readConnections;
+    private final long idleTimeoutNanos;
+
+    private final Semaphore readPermits;
+    private final Deque<IdleConnection> idleReadConnections = new ArrayDeque<>();
+    private int readConnectionsOpen = 0;
+
+    // Reentrant, so a thread holding the writer can call other DAO methods.
+    private final ReentrantLock writeLock = new ReentrantLock(true);
+    private PreparedStatementCache writeConnection;
+
+    private final LongAdder statementCacheHits = new LongAdder();
+    private final LongAdder statementCacheMisses = new LongAdder();
+
+    private long readAcquires = 0;
+    private long writeAcquires = 0;
+    private long totalAcquireWaitNanos = 0;
+    private long maxAcquireWaitNanos = 0;
+    private long evictedConnections = 0;
+
+    private boolean closed = false;
+
+    public PasswordManagerConnectionPool(ConnectionFactory connectionFactory) {
+        this(connectionFactory, DEFAULT_READ_CONNECTIONS, DEFAULT_IDLE_TIMEOUT);
+    }
+
+    public PasswordManagerConnectionPool(
+        ConnectionFactory connectionFactory,
+        int readConnections,
+        Duration idleTimeout
+    ) {
+        if (readConnections < 1) {
+            throw new IllegalArgumentException("readConnections must be at least 1.");
+        }
+
+        if (idleTimeout.isNegative()) {
+            throw new IllegalArgumentException("idleTimeout cannot be negative.");
+        }
+
+        this.connectionFactory = connectionFactory;
+        this.readConnections = readConnections;
+        this.idleTimeoutNanos = idleTimeout.toNanos();
+        this.readPermits = new Semaphore(readConnections, true);
+    }
+
+    public int getReadConnections() {
+        return readConnections;
+    }
+
+    public Duration getIdleTimeout() {
+        return Duration.ofNanos(idleTimeoutNanos);
+    }
+
+    public PooledConnection acquireReader() throws SQLException {
+        // The writer may hold uncommitted changes, a reader would not see them.
+        if (writeLock.isHeldByCurrentThread()) {
+            return acquireWriter();
+        }
+
+        long start = System.nanoTime();
+
+        try {
+            if (!readPermits.tryAcquire(ACQUIRE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                throw new SQLException("timed out waiting for a read connection.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("interrupted while waiting for a read connection.", e);
+        }
+
+        PreparedStatementCache connection = null;
+
+        try {
+            synchronized (this) {
+                ensureOpen();
+                recordAcquire(start, false);
+
+                IdleConnection idleConnection = idleReadConnections.pollFirst();
+
+                if (idleConnection != null) {
+                    connection = idleConnection.connection();
+                } else {
+                    readConnectionsOpen++;
+                }
+            }
+
+            if (connection == null) {
+                connection = openReadConnection();
+            }
+        } catch (SQLException | RuntimeException e) {
+            synchronized (this) {
+                if (connection == null && !closed) {
+                    readConnectionsOpen--;
+                }
+            }
+
+            readPermits.release();
+            throw e;
+        }
+
+        return new PooledConnection(this, connection, false);
+    }
+
+    public PooledConnection acquireWriter() throws SQLException {
+        long start = System.nanoTime();
+
+        try {
+            if (!writeLock.tryLock(ACQUIRE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                throw new SQLException("timed out waiting for the write connection.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("interrupted while waiting for the write connection.", e);
+        }
+
+        try {
+            synchronized (this) {
+                ensureOpen();
+                recordAcquire(start, true);
+            }
+
+            if (writeConnection == null || writeConnection.getConnection().isClosed()) {
+                writeConnection = newStatementCache(connectionFactory.openConnection(true));
+            }
+        } catch (SQLException | RuntimeException e) {
+            writeLock.unlock();
+            throw e;
+        }
+
+        return new PooledConnection(this, writeConnection, true);
+    }
+
+    public boolean isWriterHeldByCurrentThread() {
+        return writeLock.isHeldByCurrentThread();
+    }
+
+    private PreparedStatementCache openReadConnection() throws SQLException {
+        Connection connection = connectionFactory.openConnection(false);
+
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("PRAGMA query_only = 1;");
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+
+        return newStatementCache(connection);
+    }
+
+    private PreparedStatementCache newStatementCache(Connection connection) {
+        return new PreparedStatementCache(
+            connection,
+            PreparedStatementCache.DEFAULT_MAX_STATEMENTS,
+            statementCacheHits,
+            statementCacheMisses
+        );
+    }
+
+    void release(PooledConnection pooledConnection) {
+        if (pooledConnection.isWriter()) {
+            writeLock.unlock();
+            return;
+        }
+
+        PreparedStatementCache connection = pooledConnection.getStatementCache();
+        boolean isPoolClosed;
+
+        synchronized (this) {
+            isPoolClosed = closed;
+
+            if (!isPoolClosed) {
+                idleReadConnections.addFirst(new IdleConnection(connection, System.nanoTime()));
+                evictIdleConnections();
+            }
+        }
+
+        if (isPoolClosed) {
+            connection.close();
+        }
+
+        readPermits.release();
+    }
+
+    // Idle connections are only evicted when the pool is used, there's no background thread.
+    private synchronized void evictIdleConnections() {
+        long now = System.nanoTime();
+        Iterator<IdleConnection> iterator = idleReadConnections.descendingIterator();
+
+        while (iterator.hasNext()) {
+            IdleConnection idleConnection = iterator.next();
+
+            if (now - idleConnection.idleSinceNanos() < idleTimeoutNanos) {
+                break;
+            }
+
+            iterator.remove();
+            readConnectionsOpen--;
+            evictedConnections++;
+
+            idleConnection.connection().close();
+        }
+    }
+
+    private void recordAcquire(long start, boolean isWriter) {
+        long waited = System.nanoTime() - start;
+
+        if (isWriter) {
+            writeAcquires++;
+        } else {
+            readAcquires++;
+        }
+
+        totalAcquireWaitNanos += waited;
+        maxAcquireWaitNanos = Math.max(maxAcquireWaitNanos, waited);
+    }
+
+    private void ensureOpen() {
+        if (closed) {
+            throw new IllegalStateException("connection pool is closed.");
+        }
+    }
+
+    public synchronized Statistics getStatistics() {
+        return new Statistics(
+            readConnectionsOpen,
+            readConnectionsOpen - idleReadConnections.size(),
+            readAcquires,
+            writeAcquires,
+            totalAcquireWaitNanos,
+            maxAcquireWaitNanos,
+            evictedConnections,
+            statementCacheHits.sum(),
+            statementCacheMisses.sum()
+        );
+    }
+
+    // Closes the pool and waits for the read connections in use to be released, so that
+    // the database file is not opened by any of them afterwards. The calling thread may
+    // hold the writer, but not a reader.
+    public void closeAndWait() throws SQLException {
+        close();
+
+        try {
+            if (!readPermits.tryAcquire(readConnections, ACQUIRE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                throw new SQLException("timed out waiting for the read connections.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("interrupted while waiting for the read connections.", e);
+        }
+
+        readPermits.release(readConnections);
+    }
+
+    // Connections in use are closed when they are released.
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+
+            for (IdleConnection idleConnection : idleReadConnections) {
+                idleConnection.connection().close();
+            }
+
+            idleReadConnections.clear();
+            readConnectionsOpen = 0;
+        }
+
+        writeLock.lock();
+
+        try {
+            if (writeConnection != null) {
+                writeConnection.close();
+                writeConnection = null;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+}
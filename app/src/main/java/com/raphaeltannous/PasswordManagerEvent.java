@@ -0,0 +1,38 @@
+package com.raphaeltannous;
+
+import java.util.Set;
+
+/**
+ * PasswordManagerEvent
+ *
+ * Published by the database after each of its writes, so that a view can update
+ * the changed entries instead of fetching all of them again.
+ */
+public sealed interface PasswordManagerEvent {
+    // Called by a writing thread after it released the writer, one event at a time
+    // and in the order of the writes. Listeners should return quickly.
+    @FunctionalInterface
+    public interface Listener {
+        void onChange(PasswordManagerEvent event);
+    }
+
+    // entry is the row right after the write, so that a view doesn't fetch it again.
+    // It's null if there was no listener when the write happened.
+    public record EntryAdded(int passwordId, PasswordEntry entry) implements PasswordManagerEvent {}
+
+    // fields are the changed columns: website, username, password, otp or note.
+    public record EntryUpdated(int passwordId, Set<String> fields, PasswordEntry entry) implements PasswordManagerEvent {
+        public EntryUpdated {
+            fields = Set.copyOf(fields);
+        }
+    }
+
+    public record EntryDeleted(int passwordId) implements PasswordManagerEvent {}
+
+    // A backup code of the password was added, removed, modified or used.
+    public record BackupCodesChanged(int passwordId, PasswordEntry entry) implements PasswordManagerEvent {}
+
+    // After a batch, any entry may have been added, changed or deleted. The writes made
+    // inside the batch (committed or not) publish no other event.
+    public record AllEntriesChanged() implements PasswordManagerEvent {}
+}
@@ -1,72 +1,140 @@
 package com.raphaeltannous;
 
 import java.sql.Connection;
-import java.sql.DatabaseMetaData;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 
-import org.sqlite.mc.SQLiteMCSqlCipherConfig;
-
+import java.util.Collection;
 import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 
 /**
  * PasswordManagerInterface
  */
-public interface PasswordManagerInterface {
+public interface PasswordManagerInterface extends AutoCloseable {
 
     // You should use isFileABD() before initializing an instance.
     // If you initialize without checking and the file is not a database,
-    // it will throw an exception.
+    // it will throw an exception. PasswordManagerSQLite.open() does both with
+    // a single key derivation and tells why a file cannot be opened.
     public static boolean isFileADB(Path databasePath, String databasePassword) {
-        boolean isTablesAvailable = false;
-
-        if (Files.exists(databasePath)) {
-            try (
-                Connection connection = SQLiteMCSqlCipherConfig.getV4Defaults().withKey(databasePassword).build().createConnection("jdbc:sqlite:file:" + databasePath.normalize());
-                Statement statement = connection.createStatement();
-            ) {
-                statement.setQueryTimeout(30);
-
-                DatabaseMetaData dmd = connection.getMetaData();
-                ResultSet rs = dmd.getTables(null, null, "%", null);
-
-                // Checking if the tables `Passwords` and `backupCodes` are present.
-                boolean isPasswordsTableAvailable = false;
-                boolean isBackupCodesTableAvaible = false;
-                while (rs.next()) {
-                    if (rs.getString(4).equalsIgnoreCase("TABLE") && rs.getString(3).equals("passwords")) {
-                        isPasswordsTableAvailable = true;
-                    }
-
-                    if (rs.getString(4).equalsIgnoreCase("TABLE") && rs.getString(3).equals("backupCodes")) {
-                        isBackupCodesTableAvaible = true;
-                    }
-                }
-
-                isTablesAvailable = isPasswordsTableAvailable && isBackupCodesTableAvaible;
-            } catch (SQLException e) {
-                return false;
-            }
-        } else {
+        // Most files that are not databases are rejected without deriving a key.
+        if (!DatabaseFileSniffer.sniff(databasePath).isPossiblyADatabase()) {
+            return false;
+        }
+
+        PasswordManagerKey databaseKey;
+
+        try {
+            databaseKey = PasswordManagerKey.derive(databasePath, databasePassword);
+        } catch (IOException e) {
+            return false;
+        }
+
+        try {
+            return isFileADB(databasePath, databaseKey);
+        } finally {
+            databaseKey.destroy();
+        }
+    };
+
+    // Same as isFileADB(Path, String) but with an already derived key,
+    // the key is kept so that it can be handed to the constructor afterwards.
+    public static boolean isFileADB(Path databasePath, PasswordManagerKey databaseKey) {
+        if (!Files.exists(databasePath)) {
             return false;
         }
 
-        return isTablesAvailable;
+        try (
+            Connection connection = databaseKey.openConnection("jdbc:sqlite:file:" + databasePath.normalize());
+            Statement statement = connection.createStatement();
+        ) {
+            statement.setQueryTimeout(30);
+
+            // Checking if the tables `passwords` and `backupCodes` are present.
+            try (ResultSet rs = statement.executeQuery(
+                "SELECT COUNT(*) FROM sqlite_master "
+                + "WHERE type = 'table' AND name IN ('passwords', 'backupCodes');"
+            )) {
+                return rs.next() && rs.getInt(1) == 2;
+            }
+        } catch (SQLException e) {
+            return false;
+        }
     };
 
     public List<String[]> fetchPasswords();
     public int getPasswordsCount();
 
+    // Typed rows without the secrets, see PasswordEntry.
+    public List<PasswordEntry> fetchEntries();
+    public PasswordEntry fetchEntry(int passwordId);
+
+    // Up to limit entries following afterKey (null for the first page), see PasswordPage.
+    // filter keeps the entries whose website or username contains it, ignoring the case
+    // of ASCII letters, every entry is kept if it's empty.
+    public PasswordPage fetchPage(String filter, PasswordPage.Key afterKey, int limit, PasswordPage.SortColumn sortColumn);
+
+    public default PasswordPage fetchPage(PasswordPage.Key afterKey, int limit, PasswordPage.SortColumn sortColumn) {
+        return fetchPage("", afterKey, limit, sortColumn);
+    }
+
+    // The nextKey of every page of pageSize entries, in order, without reading the pages.
+    // Lets a view start at any page instead of following the keys from the first one.
+    public List<PasswordPage.Key> fetchPageKeys(String filter, int pageSize, PasswordPage.SortColumn sortColumn);
+
+    // Number of entries matching filter, sorted before beforeKey if it's not null
+    // (the row of the entry of beforeKey in its order).
+    public int countEntries(String filter, PasswordPage.Key beforeKey);
+
+    public default int countEntries(String filter) {
+        return countEntries(filter, null);
+    }
+
+    // Ids of the passwords whose website, username or note have words starting with every
+    // word of query, best matches first.
+    public List<Integer> search(String query, int limit);
+
+    // Sorted ids of the passwords whose website or username contains query, ignoring case.
+    // Answered from an in-memory index instead of the database, meant to filter as the user types.
+    public int[] filter(String query);
+    public void buildFilterIndex(); // Reads every entry once, filter() calls it if it was not called before.
+
+    // Rows are read fetchSize at a time while the stream is consumed, instead of being loaded
+    // in a List. The stream holds a connection, it must be closed (try-with-resources).
+    public static final int DEFAULT_FETCH_SIZE = 256;
+
+    public Stream<String[]> streamPasswords(int fetchSize); // same rows as fetchPasswords().
+    public Stream<PasswordEntry> streamEntries(int fetchSize);
+
+    public default Stream<String[]> streamPasswords() {
+        return streamPasswords(DEFAULT_FETCH_SIZE);
+    }
+
+    public default Stream<PasswordEntry> streamEntries() {
+        return streamEntries(DEFAULT_FETCH_SIZE);
+    }
+
+    // Visits every entry in constant memory, the stream is closed afterwards.
+    public default void forEachEntry(Consumer<PasswordEntry> visitor) {
+        try (Stream<PasswordEntry> entries = streamEntries()) {
+            entries.forEach(visitor);
+        }
+    }
+
     public String fetchWebsite(int passwordId);
     public String fetchUsername(int passwordId);
     public String fetchPassword(int passwordId);
     public String[] fetchPasswordData(int passwordId);
 
     // Website/Username/Password are required to be in a password and they cannot be empty.
-    public void addPassword(
+    // Returns the id of the new password.
+    public int addPassword(
         String website,
         String username,
         String password
@@ -76,8 +144,35 @@ public interface PasswordManagerInterface {
     public void modifyUsername(int passwordId, String newUsername); // newUsername cannot be empty.
     public void modifyPassword(int passwordId, String newPassword); // newPassword cannot be empty.
 
+    // Writes only the changed fields of a password in a single UPDATE.
+    public void updateEntry(int passwordId, EntryPatch patch);
+
     public void deletePassword(int passwordId);
 
+    // Bulk writes, run in JDBC batches of chunkSize rows inside a single transaction.
+    // Nothing is written if the operations throw or the database fails (Result.committed() is false).
+    public BatchWriter.Result batch(
+        Consumer<BatchWriter> operations,
+        int chunkSize,
+        BatchWriter.ProgressListener progressListener // can be null.
+    );
+
+    public default BatchWriter.Result batch(Consumer<BatchWriter> operations) {
+        return batch(operations, BatchWriter.DEFAULT_CHUNK_SIZE, null);
+    }
+
+    public default BatchWriter.Result addPasswords(
+        Collection<NewPasswordEntry> entries,
+        int chunkSize,
+        BatchWriter.ProgressListener progressListener
+    ) {
+        return batch(writer -> entries.forEach(writer::addPassword), chunkSize, progressListener);
+    }
+
+    public default BatchWriter.Result addPasswords(Collection<NewPasswordEntry> entries) {
+        return addPasswords(entries, BatchWriter.DEFAULT_CHUNK_SIZE, null);
+    }
+
     public String fetchOTP(int passwordId); // otp doesn't exists if otp is "".
     public void modifyOTP(int passwordId, String newOTP); // if newOTP is empty, then remove OTP.
 
@@ -89,5 +184,20 @@ public interface PasswordManagerInterface {
     public void modifyBackupCode(int backupCodeId, String backupCode);
     public void removeBackupCode(int backupCodeId);
     public void updateBackupCodeStatus(int backupCodeId, int status); // status is 0 if backup code is not used otherwise 1.
-    public void updateHasBackupCodeStatus(int passwordId);
+    public void updateHasBackupCodeStatus(int passwordId); // Not needed after backup code changes, the counts are kept by the database.
+
+    // Events published after each write, see PasswordManagerEvent.
+    public void addChangeListener(PasswordManagerEvent.Listener listener);
+    public void removeChangeListener(PasswordManagerEvent.Listener listener);
+
+    // Encrypts the database with a key derived from newPassword (which cannot be empty).
+    // The rows are copied in chunks to a new file next to the database, which then replaces it.
+    // The database can be written during the copy, which is then made again.
+    // Returns false, leaving the database as it was, if the listener cancels, the copy fails
+    // or the database keeps changing while it's copied.
+    public boolean rekey(String newPassword, RekeyListener listener); // listener can be null.
+
+    // Closes the underlying database, the instance cannot be used afterwards.
+    @Override
+    public void close();
 }
@@ -0,0 +1,102 @@
+package com.raphaeltannous;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.InvalidKeySpecException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.security.auth.DestroyFailedException;
+import javax.security.auth.Destroyable;
+
+import org.sqlite.mc.SQLiteMCSqlCipherConfig;
+
+/**
+ * PasswordManagerKey
+ *
+ * SQLCipher raw key of a database, derived once from the master password and the
+ * database salt so that later connections skip the key derivation.
+ */
+public class PasswordManagerKey implements Destroyable {
+    // SQLCipher 4 defaults (SQLiteMCSqlCipherConfig.getV4Defaults()).
+    private static final String KDF_ALGORITHM = "PBKDF2WithHmacSHA512";
+    private static final int KDF_ITERATIONS = 256000;
+    private static final int KEY_LENGTH = 32;
+    private static final int SALT_LENGTH = 16;
+
+    private final byte[] rawKey;
+    private boolean destroyed = false;
+
+    private PasswordManagerKey(byte[] rawKey) {
+        this.rawKey = rawKey;
+    }
+
+    // The salt is stored in the first 16 bytes of the database file,
+    // so the database must exist before its key can be derived.
+    public static PasswordManagerKey derive(Path databasePath, String databasePassword) throws IOException {
+        byte[] salt = readSalt(databasePath);
+        char[] password = databasePassword.toCharArray();
+
+        PBEKeySpec keySpec = new PBEKeySpec(password, salt, KDF_ITERATIONS, KEY_LENGTH * 8);
+
+        try {
+            SecretKey secretKey = SecretKeyFactory.getInstance(KDF_ALGORITHM).generateSecret(keySpec);
+
+            byte[] rawKey = secretKey.getEncoded();
+
+            try {
+                secretKey.destroy();
+            } catch (DestroyFailedException e) {
+                // Not every provider supports it, rawKey is still ours to zero.
+            }
+
+            return new PasswordManagerKey(rawKey);
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+            throw new IllegalStateException("cannot derive the database key.", e);
+        } finally {
+            keySpec.clearPassword();
+            Arrays.fill(password, '\0');
+        }
+    }
+
+    private static byte[] readSalt(Path databasePath) throws IOException {
+        ByteBuffer salt = ByteBuffer.allocate(SALT_LENGTH);
+
+        try (FileChannel channel = FileChannel.open(databasePath, StandardOpenOption.READ)) {
+            while (salt.hasRemaining()) {
+                if (channel.read(salt) == -1) {
+                    throw new IOException("database file is too small to contain a salt.");
+                }
+            }
+        }
+
+        return salt.array();
+    }
+
+    public synchronized Connection openConnection(String databaseURL) throws SQLException {
+        if (destroyed) {
+            throw new IllegalStateException("key is destroyed.");
+        }
+
+        return SQLiteMCSqlCipherConfig.getV4Defaults().withRawUnsaltedKey(rawKey).build().createConnection(databaseURL);
+    }
+
+    @Override
+    public synchronized void destroy() {
+        Arrays.fill(rawKey, (byte) 0);
+        destroyed = true;
+    }
+
+    @Override
+    public synchronized boolean isDestroyed() {
+        return destroyed;
+    }
+}
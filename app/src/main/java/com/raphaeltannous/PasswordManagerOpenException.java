@@ -0,0 +1,35 @@
+package com.raphaeltannous;
+
+/**
+ * PasswordManagerOpenException
+ *
+ * Thrown by PasswordManagerSQLite.open() and the constructors when the database
+ * cannot be opened, with the reason so that the UI can tell the user what is wrong.
+ */
+public class PasswordManagerOpenException extends IllegalArgumentException {
+    public enum Reason {
+        // The file is an encrypted database but not with this password, or not a database at all,
+        // SQLCipher cannot tell both apart.
+        WRONG_PASSWORD,
+        // Missing, too small to be encrypted, a plain SQLite database or without the tables of a vault.
+        NOT_A_VAULT,
+        // The password is right but the database is damaged.
+        CORRUPT
+    }
+
+    private final Reason reason;
+
+    public PasswordManagerOpenException(Reason reason, String message) {
+        super(message);
+        this.reason = reason;
+    }
+
+    public PasswordManagerOpenException(Reason reason, String message, Throwable cause) {
+        super(message, cause);
+        this.reason = reason;
+    }
+
+    public Reason getReason() {
+        return reason;
+    }
+}
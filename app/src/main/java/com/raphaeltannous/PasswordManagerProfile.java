@@ -0,0 +1,136 @@
+package com.raphaeltannous;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * PasswordManagerProfile
+ *
+ * SQLite settings applied to every connection of a vault when it is opened.
+ * The profile is saved in the settings table of the vault, so it is used again
+ * the next time the vault is opened.
+ *
+ * The key derivation settings are not part of a profile: they are fixed when the
+ * vault is created and connections are opened with the raw key anyway.
+ */
+public record PasswordManagerProfile(
+    String journalMode, // DELETE, TRUNCATE, PERSIST or WAL.
+    String synchronous, // OFF, NORMAL, FULL or EXTRA.
+    int cacheSize,      // Pages if positive, KiB if negative (like PRAGMA cache_size).
+    long mmapSize,      // Bytes, 0 disables memory mapping.
+    String tempStore    // DEFAULT, FILE or MEMORY.
+) {
+    // Rollback journal and a full sync on every commit.
+    public static final PasswordManagerProfile SAFE = new PasswordManagerProfile(
+        "DELETE",
+        "FULL",
+        -8192,
+        0,
+        "MEMORY"
+    );
+
+    // Write-ahead log, which only needs a sync at checkpoints with synchronous NORMAL,
+    // and lets the read connections keep reading while the writer commits.
+    // Encrypted pages cannot be memory-mapped, a bigger page cache is used instead.
+    public static final PasswordManagerProfile FAST = new PasswordManagerProfile(
+        "WAL",
+        "NORMAL",
+        -32768,
+        0,
+        "MEMORY"
+    );
+
+    // A vault without a row uses SAFE.
+    private static final String readStatement = (
+        "SELECT journalMode, synchronous, cacheSize, mmapSize, tempStore "
+        + "FROM settings WHERE id = 1;"
+    );
+
+    private static final String storeStatement = (
+        "INSERT OR REPLACE INTO settings (id, journalMode, synchronous, cacheSize, mmapSize, tempStore) "
+        + "VALUES (1, ?, ?, ?, ?, ?);"
+    );
+
+    private static final Set<String> JOURNAL_MODES = Set.of("DELETE", "TRUNCATE", "PERSIST", "WAL");
+    private static final Set<String> SYNCHRONOUS_MODES = Set.of("OFF", "NORMAL", "FULL", "EXTRA");
+    private static final Set<String> TEMP_STORES = Set.of("DEFAULT", "FILE", "MEMORY");
+
+    // PRAGMA values cannot be bound as parameters, so they are checked here.
+    public PasswordManagerProfile {
+        journalMode = journalMode.toUpperCase(Locale.ROOT);
+        synchronous = synchronous.toUpperCase(Locale.ROOT);
+        tempStore = tempStore.toUpperCase(Locale.ROOT);
+
+        if (!JOURNAL_MODES.contains(journalMode)) {
+            throw new IllegalArgumentException("journalMode must be one of " + JOURNAL_MODES + ".");
+        }
+
+        if (!SYNCHRONOUS_MODES.contains(synchronous)) {
+            throw new IllegalArgumentException("synchronous must be one of " + SYNCHRONOUS_MODES + ".");
+        }
+
+        if (!TEMP_STORES.contains(tempStore)) {
+            throw new IllegalArgumentException("tempStore must be one of " + TEMP_STORES + ".");
+        }
+
+        if (mmapSize < 0) {
+            throw new IllegalArgumentException("mmapSize cannot be negative.");
+        }
+    }
+
+    // The profile saved in the vault, SAFE if none was saved or it is not valid anymore.
+    public static PasswordManagerProfile read(Connection connection) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(readStatement)) {
+            statement.setQueryTimeout(30);
+
+            try (ResultSet rs = statement.executeQuery()) {
+                if (!rs.next()) {
+                    return SAFE;
+                }
+
+                return new PasswordManagerProfile(
+                    rs.getString("journalMode"),
+                    rs.getString("synchronous"),
+                    rs.getInt("cacheSize"),
+                    rs.getLong("mmapSize"),
+                    rs.getString("tempStore")
+                );
+            }
+        } catch (IllegalArgumentException e) {
+            return SAFE;
+        }
+    }
+
+    public void store(Connection connection) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(storeStatement)) {
+            statement.setQueryTimeout(30);
+
+            statement.setString(1, journalMode);
+            statement.setString(2, synchronous);
+            statement.setInt(3, cacheSize);
+            statement.setLong(4, mmapSize);
+            statement.setString(5, tempStore);
+
+            statement.executeUpdate();
+        }
+    }
+
+    // The journal mode is stored in the database file (for WAL), so only the writer changes it.
+    public void apply(Connection connection, boolean isWriter) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            if (isWriter) {
+                statement.execute("PRAGMA journal_mode = " + journalMode + ";");
+            }
+
+            statement.execute("PRAGMA synchronous = " + synchronous + ";");
+            statement.execute("PRAGMA cache_size = " + cacheSize + ";");
+            statement.execute("PRAGMA mmap_size = " + mmapSize + ";");
+            statement.execute("PRAGMA temp_store = " + tempStore + ";");
+        }
+    }
+}
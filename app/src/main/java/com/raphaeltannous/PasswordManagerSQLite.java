@@ -1,18 +1,34 @@
 package com.raphaeltannous;
 
 import java.sql.Connection;
-import java.sql.DatabaseMetaData;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
-import java.sql.SQLDataException;
 import java.sql.SQLException;
 import java.sql.Statement;
 
 import org.sqlite.mc.SQLiteMCSqlCipherConfig;
 
+import java.time.Duration;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.List;
-
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 
@@ -20,18 +36,150 @@ import java.nio.file.Path;
  * PasswordManagerSQLite
  */
 public class PasswordManagerSQLite implements PasswordManagerInterface {
-    // Encryption Configuration
-    SQLiteMCSqlCipherConfig databaseConfig = SQLiteMCSqlCipherConfig.getV4Defaults();
     private Path databasePath;
-    private String databasePassword;
-    private String databaseURL;
+
+    // Unlocked database, opened and keyed once for the lifetime of this instance.
+    private final PasswordManagerSession session;
+
+    private final PasswordManagerSchema.Layout layout;
+
+    // Built once by buildFilterIndex(), then kept up to date by the writes of this instance.
+    private volatile TrigramIndex filterIndex;
+
+    // Fields read by the fetch methods, invalidated by every write of this instance.
+    private volatile EntryCache entryCache = new EntryCache();
+
+    // fetchPasswordData() without the id, in the order of its array.
+    private static final EntryCache.Field[] PASSWORD_DATA_FIELDS = {
+        EntryCache.Field.WEBSITE,
+        EntryCache.Field.USERNAME,
+        EntryCache.Field.PASSWORD,
+        EntryCache.Field.OTP,
+        EntryCache.Field.HAS_BACKUP_CODES,
+        EntryCache.Field.NOTE
+    };
+
+    private final List<PasswordManagerEvent.Listener> changeListeners = new CopyOnWriteArrayList<>();
+
+    // Events of the writes whose writer is not released yet, see publishPendingEvents().
+    private final Queue<PasswordManagerEvent> pendingEvents = new ConcurrentLinkedQueue<>();
+    private final ReentrantLock publishLock = new ReentrantLock();
+
+    // Batches of the thread holding the writer, innermost last. Only used with the writer held.
+    private final Deque<SQLiteBatchWriter> activeBatchWriters = new ArrayDeque<>();
+
+    // Columns of the secrets table in the SPLIT layout.
+    private static final Set<String> SECRET_COLUMNS = Set.of("password", "otp", "note");
+
+    // SQLite result codes of a database that cannot be read.
+    private static final int SQLITE_CORRUPT = 11;
+    private static final int SQLITE_NOTADB = 26;
+
+    // Checks the key and the tables of a vault in a single query, see openDatabase().
+    private static final String countVaultTablesStatement = (
+        "SELECT COUNT(*) FROM sqlite_master "
+        + "WHERE type = 'table' AND name IN ('passwords', 'backupCodes');"
+    );
+
+    // Rows copied by rekey() between two progress reports, each chunk is read in its own transaction.
+    private static final int REKEY_CHUNK_SIZE = 1000;
+
+    // Copies made by rekey() before giving up when the database keeps changing during the copy.
+    private static final int REKEY_ATTEMPTS = 3;
+
+    private enum CopyResult {
+        COPIED,
+        CHANGED,  // another connection committed during the copy.
+        CANCELLED
+    }
+
+    // Tables copied by rekey() with their copied columns, parents first. The backup code
+    // counts, the flags and the search index are filled by the triggers of the new database.
+    private static final String[][] INLINE_REKEY_TABLES = {
+        {"passwords", "id, website, username, password, otp, note"},
+        {"backupCodes", "id, passwordId, code, isUsed"},
+        {"settings", "id, journalMode, synchronous, cacheSize, mmapSize, tempStore"}
+    };
+
+    private static final String[][] SPLIT_REKEY_TABLES = {
+        {"passwords", "id, website, username"},
+        {"secrets", "id, password, otp, note"},
+        {"backupCodes", "id, passwordId, code, isUsed"},
+        {"settings", "id, journalMode, synchronous, cacheSize, mmapSize, tempStore"}
+    };
 
     // Prepared Statements.
-    private final String addPasswordStatement = (
+    // Each one is prepared once per pooled connection, see PreparedStatementCache.
+    // The ones that are not final read secrets, they are replaced by useSplitLayout().
+    private String fetchPasswordsStatement = (
+        "SELECT * FROM passwords;"
+    );
+
+    // Everything but the secrets, see PasswordEntry.
+    private String fetchEntriesStatement = (
+        "SELECT id, website, username, otp <> '' AS hasOTP, note <> '' AS hasNote, backupCodeCount, unusedBackupCodeCount "
+        + "FROM passwords;"
+    );
+
+    private String fetchEntryStatement = (
+        "SELECT id, website, username, otp <> '' AS hasOTP, note <> '' AS hasNote, backupCodeCount, unusedBackupCodeCount "
+        + "FROM passwords "
+        + "WHERE id = ?;"
+    );
+
+    // Start of the statements of fetchPage(), fetchPageKeys() and countEntries(), they are
+    // completed with the filter, the keyset condition and the order of the view.
+    private String fetchPageStatement = (
+        "SELECT id, website, username, otp <> '' AS hasOTP, note <> '' AS hasNote, backupCodeCount, unusedBackupCodeCount "
+        + "FROM passwords "
+    );
+
+    // The key after every pageSize-th entry, numbered in one pass over the sort index.
+    private final String fetchPageKeysStatement = (
+        "SELECT id, website, username FROM ("
+        + "SELECT id, website, username, row_number() OVER (%s) AS rowNumber FROM passwords %s"
+        + ") WHERE rowNumber %% ? = 0 ORDER BY rowNumber;"
+    );
+
+    private final String countEntriesStatement = (
+        "SELECT COUNT(*) FROM passwords "
+    );
+
+    private final String pageFilterClause = (
+        "(website LIKE ? ESCAPE '\\' OR username LIKE ? ESCAPE '\\') "
+    );
+
+    // Website matches rank above username matches, which rank above note matches.
+    private final String searchStatement = (
+        "SELECT rowid FROM passwordsSearch "
+        + "WHERE passwordsSearch MATCH ? "
+        + "ORDER BY bm25(passwordsSearch, 10.0, 5.0, 1.0) LIMIT ?;"
+    );
+
+    // The writer is held, so the password that was just added has the largest id.
+    private final String fetchLastPasswordIdStatement = (
+        "SELECT MAX(id) FROM passwords;"
+    );
+
+    private final String fetchBackupCodePasswordIdStatement = (
+        "SELECT passwordId FROM backupCodes "
+        + "WHERE id = ?;"
+    );
+
+    private final String getPasswordsCountStatement = (
+        "SELECT COUNT(*) FROM passwords;"
+    );
+
+    private String addPasswordStatement = (
         "INSERT INTO passwords (website, username, password)"
         + " VALUES (?, ?, ?);"
     );
 
+    private String addPasswordEntryStatement = (
+        "INSERT INTO passwords (website, username, password, otp, note)"
+        + " VALUES (?, ?, ?, ?, ?);"
+    );
+
     private final String fetchWebsiteStatement = (
         "SELECT website FROM passwords "
         + "WHERE id = ?;"
@@ -42,12 +190,12 @@ public class PasswordManagerSQLite implements PasswordManagerInterface {
         + "WHERE id = ?;"
     );
 
-    private final String fetchPasswordStatement = (
+    private String fetchPasswordStatement = (
         "SELECT password FROM passwords "
         + "WHERE id = ?;"
     );
 
-    private final String fetchPasswordDataStatement = (
+    private String fetchPasswordDataStatement = (
         "SELECT * FROM passwords "
         + "WHERE id = ?;"
     );
@@ -62,7 +210,7 @@ public class PasswordManagerSQLite implements PasswordManagerInterface {
         + "WHERE id = ?;"
     );
 
-    private final String updatePasswordStatement = (
+    private String updatePasswordStatement = (
         "UPDATE passwords SET password = ? "
         + "WHERE id = ?;"
     );
@@ -77,34 +225,38 @@ public class PasswordManagerSQLite implements PasswordManagerInterface {
         + "WHERE id = ?;"
     );
 
-    private final String fetchOTPStatement = (
+    private String fetchOTPStatement = (
         "SELECT otp FROM passwords "
         + "WHERE id = ?;"
     );
 
-    private final String updateOTPStatement = (
+    private String updateOTPStatement = (
         "UPDATE passwords SET otp = ? "
         + "WHERE id = ?;"
     );
 
-    private final String fetchNoteStatement = (
+    private String fetchNoteStatement = (
         "SELECT note FROM passwords "
         + "WHERE id = ?;"
     );
 
-    private final String updateNoteStatement = (
+    private String updateNoteStatement = (
         "UPDATE passwords SET note = ? "
         + "WHERE id = ?;"
     );
 
+    // The password row is always returned (with NULL codes if it has none),
+    // so that a missing password and a password without codes can be told apart.
     private final String fetchBackupCodesStatement = (
-        "SELECT * FROM backupCodes "
-        + "WHERE passwordId = ?;"
+        "SELECT backupCodes.id, passwords.id AS passwordId, backupCodes.code, backupCodes.isUsed "
+        + "FROM passwords LEFT JOIN backupCodes ON backupCodes.passwordId = passwords.id "
+        + "WHERE passwords.id = ?;"
     );
 
+    // Inserts nothing if the password doesn't exist.
     private final String addBackupCodeStatement = (
         "INSERT INTO backupCodes (passwordId, code) "
-        + "VALUES (?, ?);"
+        + "SELECT id, ? FROM passwords WHERE id = ?;"
     );
 
     private final String removeBackupCodeStatement = (
@@ -117,77 +269,253 @@ public class PasswordManagerSQLite implements PasswordManagerInterface {
         + "WHERE id = ?;"
     );
 
+    // The counts are kept by triggers (see PasswordManagerSchema), this only recounts them.
     private final String updateHasBackupCodeStatusStatement =  (
-        "UPDATE passwords SET hasBackupCodes = ? "
+        "UPDATE passwords SET "
+        + "backupCodeCount = (SELECT COUNT(*) FROM backupCodes WHERE passwordId = passwords.id), "
+        + "unusedBackupCodeCount = (SELECT COUNT(*) FROM backupCodes WHERE passwordId = passwords.id AND isUsed IS NOT 1), "
+        + "hasBackupCodes = EXISTS (SELECT 1 FROM backupCodes WHERE passwordId = passwords.id) "
         + "WHERE id = ?;"
     );
 
-    private final String getBackupCodesCountStatement = (
-        "SELECT COUNT(*) FROM backupCodes "
-        + "WHERE passwordId  = ?;"
-    );
+    // Constructor and database initializer.
+    public PasswordManagerSQLite(
+        Path databasePath,
+        String databasePassword
+    ) {
+        this(databasePath, getDatabaseKey(databasePath, databasePassword));
+    }
 
-    private final String isPasswordInDBStatement = (
-        "SELECT id FROM passwords "
-        + "WHERE id = ?;"
-    );
+    public PasswordManagerSQLite(
+        Path databasePath,
+        String databasePassword,
+        PasswordManagerSchema.Layout layout
+    ) {
+        this(databasePath, getDatabaseKey(databasePath, databasePassword), layout);
+    }
 
-    private final String isBackupCodeInDBStatement = (
-        "SELECT id FROM backupCodes "
-        + "WHERE id = ?;"
-    );
+    // The key is owned by the instance afterwards, it is destroyed when the instance is closed.
+    public PasswordManagerSQLite(
+        Path databasePath,
+        PasswordManagerKey databaseKey
+    ) {
+        this(databasePath, databaseKey, null);
+    }
 
-    // Constructor and database initializer.
+    // layout is null to keep the layout of the database. An INLINE database is migrated
+    // to the SPLIT layout in place, the other way around is not supported.
+    // Throws a PasswordManagerOpenException if the key doesn't open a database with our tables.
     public PasswordManagerSQLite(
         Path databasePath,
-        String databasePassword
+        PasswordManagerKey databaseKey,
+        PasswordManagerSchema.Layout layout
     ) {
-        this.databasePath =  databasePath.normalize();
-        this.databasePassword = databasePassword;
-        this.databaseURL = "jdbc:sqlite:file:" + this.databasePath;
+        this(
+            databasePath.normalize(),
+            databaseKey,
+            layout,
+            openDatabase(databasePath.normalize(), databaseKey)
+        );
+    }
 
-        if (
-            !PasswordManagerInterface.isFileADB(this.databasePath, this.databasePassword) &&
-            Files.exists(this.databasePath)
-        ) {
-            throw new IllegalArgumentException(
-                "Failed establishing a connection to the database.\n"
-                + "The PasswordManagerInterface provides isFileADB() function to check before initializing."
+    // connection is the one that checked the database, it upgrades the schema and is closed afterwards.
+    private PasswordManagerSQLite(
+        Path databasePath,
+        PasswordManagerKey databaseKey,
+        PasswordManagerSchema.Layout layout,
+        Connection connection
+    ) {
+        this.databasePath = databasePath;
+        this.session = new PasswordManagerSession(this.databasePath, databaseKey);
+
+        PasswordManagerSchema.Layout databaseLayout;
+
+        // Before the pool opens its connections, which enforce foreign keys.
+        try (connection) {
+            PasswordManagerSchema.upgrade(connection);
+
+            // The pool has no connection yet, they are all opened with the profile of the vault.
+            session.setProfile(PasswordManagerProfile.read(connection));
+
+            databaseLayout = PasswordManagerSchema.getLayout(connection);
+
+            if (layout == PasswordManagerSchema.Layout.SPLIT && databaseLayout == PasswordManagerSchema.Layout.INLINE) {
+                PasswordManagerSchema.splitSecrets(connection);
+                databaseLayout = PasswordManagerSchema.Layout.SPLIT;
+            }
+        } catch (SQLException e) {
+            session.close();
+
+            throw new IllegalArgumentException("Failed upgrading the database schema.", e);
+        }
+
+        if (layout == PasswordManagerSchema.Layout.INLINE && databaseLayout == PasswordManagerSchema.Layout.SPLIT) {
+            session.close();
+
+            throw new IllegalArgumentException("secrets of the database are already split.");
+        }
+
+        this.layout = databaseLayout;
+
+        if (databaseLayout == PasswordManagerSchema.Layout.SPLIT) {
+            useSplitLayout();
+        }
+    }
+
+    // Secrets are read from and written to the secrets table, the list flags are columns.
+    private void useSplitLayout() {
+        String inlineFlags = "otp <> '' AS hasOTP, note <> '' AS hasNote";
+        String splitFlags = "hasOTP, hasNote";
+
+        fetchPasswordsStatement = "SELECT * FROM passwordsWithSecrets;";
+        fetchPasswordDataStatement = "SELECT * FROM passwordsWithSecrets WHERE id = ?;";
+
+        addPasswordStatement = addPasswordStatement.replace("INTO passwords ", "INTO passwordsWithSecrets ");
+        addPasswordEntryStatement = addPasswordEntryStatement.replace("INTO passwords ", "INTO passwordsWithSecrets ");
+
+        fetchPasswordStatement = "SELECT password FROM secrets WHERE id = ?;";
+        fetchOTPStatement = "SELECT otp FROM secrets WHERE id = ?;";
+        fetchNoteStatement = "SELECT note FROM secrets WHERE id = ?;";
+
+        updatePasswordStatement = "UPDATE secrets SET password = ? WHERE id = ?;";
+        updateOTPStatement = "UPDATE secrets SET otp = ? WHERE id = ?;";
+        updateNoteStatement = "UPDATE secrets SET note = ? WHERE id = ?;";
+
+        fetchEntriesStatement = fetchEntriesStatement.replace(inlineFlags, splitFlags);
+        fetchEntryStatement = fetchEntryStatement.replace(inlineFlags, splitFlags);
+        fetchPageStatement = fetchPageStatement.replace(inlineFlags, splitFlags);
+    }
+
+    public PasswordManagerSchema.Layout getLayout() {
+        return layout;
+    }
+
+    // Unlocks an existing database with a single key derivation and a single connection,
+    // which checks the key and the tables then upgrades the schema.
+    // Throws a PasswordManagerOpenException with the reason if it cannot be opened.
+    public static PasswordManagerSQLite open(Path databasePath, String databasePassword) {
+        Path normalizedDatabasePath = databasePath.normalize();
+
+        // Before the key derivation, which is the slow part.
+        DatabaseFileSniffer.Result sniffed = DatabaseFileSniffer.sniff(normalizedDatabasePath);
+
+        if (!sniffed.isPossiblyADatabase()) {
+            throw new PasswordManagerOpenException(
+                PasswordManagerOpenException.Reason.NOT_A_VAULT,
+                "file cannot be a database (" + sniffed.name().toLowerCase(Locale.ROOT) + ")."
             );
         }
 
-        try (
-            // By default, if there's no database file the sqlite-jdbc will create one.
-            Connection connection = databaseConfig.withKey(this.databasePassword).build().createConnection(this.databaseURL);
-            Statement statement = connection.createStatement();
-        ) {
-            statement.setQueryTimeout(30);
+        PasswordManagerKey databaseKey;
+
+        try {
+            databaseKey = PasswordManagerKey.derive(normalizedDatabasePath, databasePassword);
+        } catch (IOException e) {
+            throw new PasswordManagerOpenException(
+                PasswordManagerOpenException.Reason.NOT_A_VAULT,
+                "cannot read the salt of the database.",
+                e
+            );
+        }
 
-            DatabaseMetaData dmd = connection.getMetaData();
-            ResultSet rs = dmd.getTables(null, null, "%", null);
+        try {
+            return new PasswordManagerSQLite(normalizedDatabasePath, databaseKey, null);
+        } catch (IllegalArgumentException e) {
+            databaseKey.destroy();
+            throw e;
+        }
+    }
 
-            // Checking if the tables `Passwords` and `backupCodes` are present.
-            boolean isPasswordsTableAvailable = false;
-            boolean isBackupCodesTableAvaible = false;
-            boolean areTablesAvailable = false;
-            while (rs.next()) {
-                if (rs.getString(4).equalsIgnoreCase("TABLE") && rs.getString(3).equals("passwords")) {
-                    isPasswordsTableAvailable = true;
-                }
+    // The first read decrypts the first page, so a wrong key fails on this query.
+    private static Connection openDatabase(Path databasePath, PasswordManagerKey databaseKey) {
+        if (!Files.isRegularFile(databasePath)) {
+            throw new PasswordManagerOpenException(
+                PasswordManagerOpenException.Reason.NOT_A_VAULT,
+                "database file does not exist."
+            );
+        }
+
+        Connection connection = null;
+
+        try {
+            connection = databaseKey.openConnection("jdbc:sqlite:file:" + databasePath);
 
-                if (rs.getString(4).equalsIgnoreCase("TABLE") && rs.getString(3).equals("backupCodes")) {
-                    isBackupCodesTableAvaible = true;
+            try (PreparedStatement statement = connection.prepareStatement(countVaultTablesStatement)) {
+                statement.setQueryTimeout(30);
+
+                try (ResultSet rs = statement.executeQuery()) {
+                    if (rs.next() && rs.getInt(1) == 2) {
+                        return connection;
+                    }
                 }
             }
 
-            areTablesAvailable = isPasswordsTableAvailable && isBackupCodesTableAvaible;
+            connection.close();
 
-            if (isPasswordsTableAvailable != isBackupCodesTableAvaible) { // XOR
-                throw new SQLDataException("database's tables are messed up.");
+            throw new PasswordManagerOpenException(
+                PasswordManagerOpenException.Reason.NOT_A_VAULT,
+                "database has no passwords and backupCodes tables."
+            );
+        } catch (SQLException e) {
+            if (connection != null) {
+                try {
+                    connection.close();
+                } catch (SQLException closeException) {
+                    e.addSuppressed(closeException);
+                }
             }
 
-            // If there's no table, create a new one.
-            //
+            throw toOpenException(databasePath, e);
+        }
+    }
+
+    private static IllegalArgumentException toOpenException(Path databasePath, SQLException e) {
+        // Primary result codes, the extended ones keep them in the low byte.
+        return switch (e.getErrorCode() & 0xff) {
+            case SQLITE_NOTADB -> !DatabaseFileSniffer.sniff(databasePath).isPossiblyADatabase()
+                ? new PasswordManagerOpenException(
+                    PasswordManagerOpenException.Reason.NOT_A_VAULT,
+                    "file is not an encrypted database.",
+                    e
+                )
+                : new PasswordManagerOpenException(
+                    PasswordManagerOpenException.Reason.WRONG_PASSWORD,
+                    "databasePassword is wrong or the file is not a database.",
+                    e
+                );
+            case SQLITE_CORRUPT -> new PasswordManagerOpenException(
+                PasswordManagerOpenException.Reason.CORRUPT,
+                "database is corrupt.",
+                e
+            );
+            default -> new IllegalArgumentException("Failed establishing a connection to the database.", e);
+        };
+    }
+
+    // Creates the database if needed, then derives its key once from the password.
+    private static PasswordManagerKey getDatabaseKey(Path databasePath, String databasePassword) {
+        Path normalizedDatabasePath = databasePath.normalize();
+
+        if (!Files.exists(normalizedDatabasePath)) {
+            createDatabase(normalizedDatabasePath, databasePassword);
+        }
+
+        try {
+            return PasswordManagerKey.derive(normalizedDatabasePath, databasePassword);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Failed establishing a connection to the database.", e);
+        }
+    }
+
+    private static void createDatabase(Path databasePath, String databasePassword) {
+        try (
+            // By default, if there's no database file the sqlite-jdbc will create one.
+            // The salt is only generated here, so this connection has to use the password.
+            Connection connection = SQLiteMCSqlCipherConfig.getV4Defaults().withKey(databasePassword).build().createConnection("jdbc:sqlite:file:" + databasePath);
+            Statement statement = connection.createStatement();
+        ) {
+            statement.setQueryTimeout(30);
+
             // CREATE TABLE passwords (
             //   id INTEGER NOT NULL PRIMARY KEY,
             //   website VARCHAR NOT NULL,
@@ -206,29 +534,27 @@ public class PasswordManagerSQLite implements PasswordManagerInterface {
             //   FOREIGN KEY (passwordId) REFERENCES passwords(id)
             // );
 
-            if (!areTablesAvailable) {
-                statement.executeUpdate(
-                    "CREATE TABLE passwords ("
-                    + "id INTEGER NOT NULL PRIMARY KEY, "
-                    + "website VARCHAR NOT NULL, "
-                    + "username VARCHAR NOT NULL, "
-                    + "password VARCHAR NOT NULL, "
-                    + "otp VARCHAR DEFAULT '', "
-                    + "hasBackupCodes INTEGER DEFAULT 0 CHECK (hasBackupCodes IN (0, 1)), "
-                    + "note VARCHAR DEFAULT ''"
-                    + ");"
-                );
+            statement.executeUpdate(
+                "CREATE TABLE passwords ("
+                + "id INTEGER NOT NULL PRIMARY KEY, "
+                + "website VARCHAR NOT NULL, "
+                + "username VARCHAR NOT NULL, "
+                + "password VARCHAR NOT NULL, "
+                + "otp VARCHAR DEFAULT '', "
+                + "hasBackupCodes INTEGER DEFAULT 0 CHECK (hasBackupCodes IN (0, 1)), "
+                + "note VARCHAR DEFAULT ''"
+                + ");"
+            );
 
-                statement.executeUpdate(
-                    "CREATE TABLE backupCodes ("
-                    + "id INTEGER NOT NULL PRIMARY KEY, "
-                    + "passwordId INTEGER NOT NULL, "
-                    + "code VARCHAR NOT NULL, "
-                    + "isUsed INTEGER DEFAULT 0 CHECK (isUsed IN (0, 1)), "
-                    + "FOREIGN KEY (passwordId) REFERENCES passwords(id)"
-                    + ");"
-                );
-            }
+            statement.executeUpdate(
+                "CREATE TABLE backupCodes ("
+                + "id INTEGER NOT NULL PRIMARY KEY, "
+                + "passwordId INTEGER NOT NULL, "
+                + "code VARCHAR NOT NULL, "
+                + "isUsed INTEGER DEFAULT 0 CHECK (isUsed IN (0, 1)), "
+                + "FOREIGN KEY (passwordId) REFERENCES passwords(id)"
+                + ");"
+            );
         } catch (SQLException e) {
             e.printStackTrace(System.err);
         }
@@ -238,27 +564,26 @@ public class PasswordManagerSQLite implements PasswordManagerInterface {
         List<String[]> passwords = new ArrayList<>();
 
         try (
-            Connection connection = databaseConfig.withKey(this.databasePassword).build().createConnection(this.databaseURL);
-            Statement statement = connection.createStatement();
+            PooledConnection connection = session.acquireReader();
         ) {
-            statement.setQueryTimeout(30);
-
-            ResultSet rs = statement.executeQuery(
-                "SELECT * FROM passwords;"
-            );
+            PreparedStatement statement = connection.prepareStatement(fetchPasswordsStatement);
 
-            while (rs.next()) {
-                String[] data = {
-                    rs.getString("id"),
-                    rs.getString("website"),
-                    rs.getString("username"),
-                    rs.getString("password"),
-                    rs.getString("otp"),
-                    Integer.toString(rs.getInt("hasBackupCodes")),
-                    rs.getString("note")
-                };
+            statement.setQueryTimeout(30);
 
-                passwords.add(data);
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    String[] data = {
+                        rs.getString("id"),
+                        rs.getString("website"),
+                        rs.getString("username"),
+                        rs.getString("password"),
+                        rs.getString("otp"),
+                        Integer.toString(rs.getInt("hasBackupCodes")),
+                        rs.getString("note")
+                    };
+
+                    passwords.add(data);
+                }
             }
         } catch (SQLException e) {
             e.printStackTrace(System.err);
@@ -267,564 +592,1694 @@ public class PasswordManagerSQLite implements PasswordManagerInterface {
         return passwords;
     }
 
-    public int getPasswordsCount() {
-        int count = 0;
+    public List<PasswordEntry> fetchEntries() {
+        List<PasswordEntry> entries = new ArrayList<>();
 
         try (
-            Connection connection = databaseConfig.withKey(this.databasePassword).build().createConnection(this.databaseURL);
-            Statement statement = connection.createStatement();
+            PooledConnection connection = session.acquireReader();
         ) {
-            statement.setQueryTimeout(30);
+            PreparedStatement statement = connection.prepareStatement(fetchEntriesStatement);
 
-            ResultSet rs = statement.executeQuery(
-                "SELECT COUNT(*) FROM passwords;"
-            );
+            statement.setQueryTimeout(30);
 
-            if (rs.next()) {
-                count = rs.getInt(1);
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    entries.add(readEntry(rs));
+                }
             }
         } catch (SQLException e) {
             e.printStackTrace(System.err);
         }
 
-        return count;
+        return entries;
     }
 
-    public String fetchWebsite(int passwordId) {
-        if (!isPasswordInDB(passwordId)) {
-            throw new IllegalArgumentException("password is not in the database.");
-        }
-
-        String website = "";
+    public PasswordEntry fetchEntry(int passwordId) {
+        PasswordEntry entry = null;
 
         try (
-            Connection connection = databaseConfig.withKey(this.databasePassword).build().createConnection(this.databaseURL);
-            PreparedStatement statement = connection.prepareStatement(fetchWebsiteStatement);
+            PooledConnection connection = session.acquireReader();
         ) {
+            PreparedStatement statement = connection.prepareStatement(fetchEntryStatement);
+
             statement.setQueryTimeout(30);
 
             statement.setInt(1, passwordId);
 
-            ResultSet rs = statement.executeQuery();
+            try (ResultSet rs = statement.executeQuery()) {
+                if (!rs.next()) {
+                    throw new IllegalArgumentException("password is not in the database.");
+                }
 
-            website = rs.getString("website");
+                entry = readEntry(rs);
+            }
         } catch (SQLException e) {
             e.printStackTrace(System.err);
         }
 
-        return website;
+        return entry;
     }
 
-    public String fetchUsername(int passwordId) {
-        if (!isPasswordInDB(passwordId)) {
-            throw new IllegalArgumentException("password is not in the database.");
+    public PasswordPage fetchPage(String filter, PasswordPage.Key afterKey, int limit, PasswordPage.SortColumn sortColumn) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("limit must be at least 1.");
         }
 
-        String username = "";
+        checkKey(afterKey, sortColumn);
+
+        // One statement per order, with or without the filter and the key, each one is cached like the constants.
+        String sql = fetchPageStatement + pageWhereClause(filter, afterKey, ">") + orderBy(sortColumn) + "LIMIT ?;";
+
+        List<PasswordEntry> entries = new ArrayList<>();
 
         try (
-            Connection connection = databaseConfig.withKey(this.databasePassword).build().createConnection(this.databaseURL);
-            PreparedStatement statement = connection.prepareStatement(fetchUsernameStatement);
+            PooledConnection connection = session.acquireReader();
         ) {
+            PreparedStatement statement = connection.prepareStatement(sql);
+
             statement.setQueryTimeout(30);
 
-            statement.setInt(1, passwordId);
+            int parameterIndex = bindPageWhereClause(statement, filter, afterKey);
 
-            ResultSet rs = statement.executeQuery();
+            // One more row than asked, to know if there's a next page.
+            statement.setInt(parameterIndex, limit + 1);
 
-            username = rs.getString("username");
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    entries.add(readEntry(rs));
+                }
+            }
         } catch (SQLException e) {
             e.printStackTrace(System.err);
         }
 
-        return username;
+        PasswordPage.Key nextKey = null;
+
+        if (entries.size() > limit) {
+            entries.remove(limit);
+            nextKey = PasswordPage.Key.after(sortColumn, entries.get(limit - 1));
+        }
+
+        return new PasswordPage(entries, nextKey);
     }
 
-    public String fetchPassword(int passwordId) {
-        if (!isPasswordInDB(passwordId)) {
-            throw new IllegalArgumentException("password is not in the database.");
+    public List<PasswordPage.Key> fetchPageKeys(String filter, int pageSize, PasswordPage.SortColumn sortColumn) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("pageSize must be at least 1.");
         }
 
-        String password = "";
+        String sql = fetchPageKeysStatement.formatted(orderBy(sortColumn), pageWhereClause(filter, null, ">"));
+
+        List<PasswordPage.Key> keys = new ArrayList<>();
 
         try (
-            Connection connection = databaseConfig.withKey(this.databasePassword).build().createConnection(this.databaseURL);
-            PreparedStatement statement = connection.prepareStatement(fetchPasswordStatement);
+            PooledConnection connection = session.acquireReader();
         ) {
+            PreparedStatement statement = connection.prepareStatement(sql);
+
             statement.setQueryTimeout(30);
 
-            statement.setInt(1, passwordId);
+            int parameterIndex = bindPageWhereClause(statement, filter, null);
 
-            ResultSet rs = statement.executeQuery();
+            statement.setInt(parameterIndex, pageSize);
 
-            password = rs.getString("password");
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    String value = switch (sortColumn) {
+                        case ID -> null;
+                        case WEBSITE -> rs.getString("website");
+                        case USERNAME -> rs.getString("username");
+                    };
+
+                    keys.add(new PasswordPage.Key(sortColumn, value, rs.getInt("id")));
+                }
+            }
         } catch (SQLException e) {
             e.printStackTrace(System.err);
         }
 
-        return password;
+        return keys;
     }
 
-    public String[] fetchPasswordData(int passwordId) {
-        if (!isPasswordInDB(passwordId)) {
-            throw new IllegalArgumentException("password is not in the database.");
-        }
+    public int countEntries(String filter, PasswordPage.Key beforeKey) {
+        String sql = countEntriesStatement + pageWhereClause(filter, beforeKey, "<") + ";";
 
-        String[] passwordData = new String[7];
+        int count = 0;
 
         try (
-            Connection connection = databaseConfig.withKey(this.databasePassword).build().createConnection(this.databaseURL);
-            PreparedStatement statement = connection.prepareStatement(fetchPasswordDataStatement);
+            PooledConnection connection = session.acquireReader();
         ) {
+            PreparedStatement statement = connection.prepareStatement(sql);
+
             statement.setQueryTimeout(30);
 
-            statement.setInt(1, passwordId);
+            bindPageWhereClause(statement, filter, beforeKey);
 
-            ResultSet rs = statement.executeQuery();
+            try (ResultSet rs = statement.executeQuery()) {
+                rs.next();
 
-            passwordData = new String[] {
-                rs.getString("id"),
-                rs.getString("website"),
-                rs.getString("username"),
-                rs.getString("password"),
-                rs.getString("otp"),
-                rs.getString("hasBackupCodes"),
-                rs.getString("note")
-            };
+                count = rs.getInt(1);
+            }
         } catch (SQLException e) {
             e.printStackTrace(System.err);
         }
 
-        return passwordData;
+        return count;
     }
 
-    public void addPassword(String website, String username, String password) {
-        if (website.isEmpty()) {
-            throw new IllegalArgumentException("website cannot be empty.");
-        }
-
-        if (username.isEmpty()) {
-            throw new IllegalArgumentException("username cannot be empty.");
+    private static void checkKey(PasswordPage.Key key, PasswordPage.SortColumn sortColumn) {
+        if (key != null && key.sortColumn() != sortColumn) {
+            throw new IllegalArgumentException("key is not a key of a page sorted by " + sortColumn + ".");
         }
+    }
 
-        if (password.isEmpty()) {
-            throw new IllegalArgumentException("password cannot be empty.");
-        }
+    private static String orderBy(PasswordPage.SortColumn sortColumn) {
+        return switch (sortColumn) {
+            case ID -> "ORDER BY id ";
+            case WEBSITE -> "ORDER BY website COLLATE NOCASE, id ";
+            case USERNAME -> "ORDER BY username COLLATE NOCASE, id ";
+        };
+    }
 
-        try (
-            Connection connection = databaseConfig.withKey(this.databasePassword).build().createConnection(this.databaseURL);
-            PreparedStatement statement = connection.prepareStatement(addPasswordStatement);
-        ) {
-            statement.setQueryTimeout(30);
+    // The entries matching the filter and sorted after (comparison ">") or before ("<") the key.
+    // The COLLATE is on the parameter so that the row value comparison can use the index.
+    private String pageWhereClause(String filter, PasswordPage.Key key, String comparison) {
+        List<String> conditions = new ArrayList<>();
 
-            statement.setString(1, website);
-            statement.setString(2, username);
-            statement.setString(3, password);
+        if (!filter.isEmpty()) {
+            conditions.add(pageFilterClause);
+        }
 
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            e.printStackTrace(System.err);
+        if (key != null) {
+            conditions.add(switch (key.sortColumn()) {
+                case ID -> "id " + comparison + " ? ";
+                case WEBSITE -> "(website, id) " + comparison + " (? COLLATE NOCASE, ?) ";
+                case USERNAME -> "(username, id) " + comparison + " (? COLLATE NOCASE, ?) ";
+            });
         }
-    }
 
-    private boolean isPasswordInDB(int passwordId) {
-        try (
-            Connection connection = databaseConfig.withKey(this.databasePassword).build().createConnection(this.databaseURL);
-            PreparedStatement statement = connection.prepareStatement(isPasswordInDBStatement);
-        ) {
-            statement.setQueryTimeout(30);
+        return conditions.isEmpty() ? "" : "WHERE " + String.join("AND ", conditions);
+    }
 
-            statement.setInt(1, passwordId);
+    // Binds the parameters of pageWhereClause(), returns the next parameter index.
+    private static int bindPageWhereClause(PreparedStatement statement, String filter, PasswordPage.Key key) throws SQLException {
+        int parameterIndex = 1;
 
-            ResultSet rs = statement.executeQuery();
+        if (!filter.isEmpty()) {
+            String pattern = "%" + filter.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "%";
 
-            int fetchedPasswordId = rs.getInt("id");
+            statement.setString(parameterIndex++, pattern);
+            statement.setString(parameterIndex++, pattern);
+        }
 
-            if (passwordId == fetchedPasswordId) {
-                return true;
+        if (key != null) {
+            if (key.sortColumn() != PasswordPage.SortColumn.ID) {
+                statement.setString(parameterIndex++, key.value());
             }
-        } catch (SQLException e) {
-            e.printStackTrace(System.err);
+
+            statement.setInt(parameterIndex++, key.id());
         }
 
-        return false;
+        return parameterIndex;
     }
 
-    public void modifyWebsite(int passwordId, String newWebsite) {
-        if (newWebsite.isEmpty()) {
-            throw new IllegalArgumentException("newWebsite cannot be empty.");
+    public int[] filter(String query) {
+        buildFilterIndex();
+
+        TrigramIndex index = filterIndex;
+
+        if (index == null) {
+            return new int[0];
         }
 
-        if (!isPasswordInDB(passwordId)) {
-            throw new IllegalArgumentException("password is not in the database.");
+        return index.search(query);
+    }
+
+    // The writer is only held so that no write runs while the entries are read.
+    @SuppressWarnings("try")
+    public void buildFilterIndex() {
+        if (filterIndex != null) {
+            return;
         }
 
         try (
-            Connection connection = databaseConfig.withKey(this.databasePassword).build().createConnection(this.databaseURL);
-            PreparedStatement statement = connection.prepareStatement(updateWebsiteStatement);
+            PooledConnection connection = session.acquireWriter();
         ) {
-            statement.setQueryTimeout(30);
-
-            statement.setString(1, newWebsite);
-            statement.setInt(2, passwordId);
-
-            statement.executeUpdate();
+            if (filterIndex == null) {
+                filterIndex = newFilterIndex();
+            }
         } catch (SQLException e) {
             e.printStackTrace(System.err);
         }
     }
 
-    public void modifyUsername(int passwordId, String newUsername) {
-        if (newUsername.isEmpty()) {
-            throw new IllegalArgumentException("newUsername cannot be empty.");
-        }
+    // Called with the writer held.
+    private TrigramIndex newFilterIndex() {
+        TrigramIndex index = new TrigramIndex();
 
-        if (!isPasswordInDB(passwordId)) {
-            throw new IllegalArgumentException("password is not in the database.");
-        }
+        forEachEntry(entry -> index.put(entry.id(), entry.website(), entry.username()));
 
-        try (
-            Connection connection = databaseConfig.withKey(this.databasePassword).build().createConnection(this.databaseURL);
-            PreparedStatement statement = connection.prepareStatement(updateUsernameStatement);
-        ) {
-            statement.setQueryTimeout(30);
+        return index;
+    }
 
-            statement.setString(1, newUsername);
-            statement.setInt(2, passwordId);
+    // Called with the writer held, so the index sees the writes in the same order as the database.
+    private void updateFilterIndex(int passwordId, String website, String username) {
+        TrigramIndex index = filterIndex;
 
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            e.printStackTrace(System.err);
+        if (index != null) {
+            index.put(passwordId, website, username);
         }
     }
 
-    public void modifyPassword(int passwordId, String newPassword) {
-        if (newPassword.isEmpty()) {
-            throw new IllegalArgumentException("newPassword cannot be empty.");
+    private void removeFromFilterIndex(int passwordId) {
+        TrigramIndex index = filterIndex;
+
+        if (index != null) {
+            index.remove(passwordId);
+        }
+    }
+
+    public List<Integer> search(String query, int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("limit must be at least 1.");
         }
 
-        if (!isPasswordInDB(passwordId)) {
-            throw new IllegalArgumentException("password is not in the database.");
+        List<Integer> passwordIds = new ArrayList<>();
+        String matchExpression = toMatchExpression(query);
+
+        if (matchExpression.isEmpty()) {
+            return passwordIds;
         }
 
         try (
-            Connection connection = databaseConfig.withKey(this.databasePassword).build().createConnection(this.databaseURL);
-            PreparedStatement statement = connection.prepareStatement(updatePasswordStatement);
+            PooledConnection connection = session.acquireReader();
         ) {
+            PreparedStatement statement = connection.prepareStatement(searchStatement);
+
             statement.setQueryTimeout(30);
 
-            statement.setString(1, newPassword);
-            statement.setInt(2, passwordId);
+            statement.setString(1, matchExpression);
+            statement.setInt(2, limit);
 
-            statement.executeUpdate();
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    passwordIds.add(rs.getInt(1));
+                }
+            }
         } catch (SQLException e) {
             e.printStackTrace(System.err);
         }
+
+        return passwordIds;
     }
 
-    public void deletePassword(int passwordId) {
-        if (!isPasswordInDB(passwordId)) {
-            throw new IllegalArgumentException("password is not in the database.");
-        }
+    // Every word of the query is a quoted prefix, so that FTS5 operators and
+    // punctuation in the query are searched for instead of being interpreted.
+    // "git hub.com" -> "git"* "hub.com"*
+    private static String toMatchExpression(String query) {
+        StringBuilder matchExpression = new StringBuilder();
 
-        try (
-            Connection connection = databaseConfig.withKey(this.databasePassword).build().createConnection(this.databaseURL);
-            PreparedStatement statement = connection.prepareStatement(deletePasswordStatement);
-        ) {
-            statement.setQueryTimeout(30);
+        for (String word : query.trim().split("\\s+")) {
+            if (word.isEmpty()) {
+                continue;
+            }
 
-            statement.setInt(1, passwordId);
+            if (matchExpression.length() > 0) {
+                matchExpression.append(' ');
+            }
 
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            e.printStackTrace(System.err);
+            matchExpression.append('"').append(word.replace("\"", "\"\"")).append("\"*");
         }
+
+        return matchExpression.toString();
     }
 
-    public String fetchOTP(int passwordId) {
-        if (!isPasswordInDB(passwordId)) {
-            throw new IllegalArgumentException("password is not in the database.");
-        }
+    public Stream<String[]> streamPasswords(int fetchSize) {
+        return stream(fetchPasswordsStatement, fetchSize, rs -> new String[] {
+            rs.getString("id"),
+            rs.getString("website"),
+            rs.getString("username"),
+            rs.getString("password"),
+            rs.getString("otp"),
+            Integer.toString(rs.getInt("hasBackupCodes")),
+            rs.getString("note")
+        });
+    }
 
-        String otp = "";
+    public Stream<PasswordEntry> streamEntries(int fetchSize) {
+        return stream(fetchEntriesStatement, fetchSize, this::readEntry);
+    }
 
-        try (
-            Connection connection = databaseConfig.withKey(this.databasePassword).build().createConnection(this.databaseURL);
-            PreparedStatement statement = connection.prepareStatement(fetchOTPStatement);
-        ) {
-            statement.setQueryTimeout(30);
+    @FunctionalInterface
+    private interface RowReader<T> {
+        T read(ResultSet rs) throws SQLException;
+    }
 
-            statement.setInt(1, passwordId);
+    // The connection is held until the stream is closed. The statement is not taken from
+    // the cache, the same thread may run the same query while the stream is open.
+    private <T> Stream<T> stream(String sql, int fetchSize, RowReader<T> rowReader) {
+        if (fetchSize < 1) {
+            throw new IllegalArgumentException("fetchSize must be at least 1.");
+        }
+
+        PooledConnection connection = null;
+        PreparedStatement statement = null;
+        ResultSet rs;
 
-            ResultSet rs = statement.executeQuery();
+        try {
+            connection = session.acquireReader();
+            statement = connection.getConnection().prepareStatement(sql);
+
+            statement.setQueryTimeout(30);
+            statement.setFetchSize(fetchSize);
 
-            otp = rs.getString("otp");
+            rs = statement.executeQuery();
         } catch (SQLException e) {
             e.printStackTrace(System.err);
+
+            closeStream(statement, connection);
+
+            return Stream.empty();
         }
 
-        return otp;
+        Spliterator<T> spliterator = new Spliterators.AbstractSpliterator<>(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+            @Override
+            public boolean tryAdvance(Consumer<? super T> action) {
+                try {
+                    if (!rs.next()) {
+                        return false;
+                    }
+
+                    action.accept(rowReader.read(rs));
+
+                    return true;
+                } catch (SQLException e) {
+                    throw new IllegalStateException("failed reading the database.", e);
+                }
+            }
+        };
+
+        PreparedStatement openStatement = statement;
+        PooledConnection openConnection = connection;
+
+        // Closing the statement closes its ResultSet.
+        return StreamSupport.stream(spliterator, false).onClose(() -> closeStream(openStatement, openConnection));
     }
 
-    public void modifyOTP(int passwordId, String newOTP) {
-        // If newOTP is empty then there's no OTP.
+    private static void closeStream(PreparedStatement statement, PooledConnection connection) {
+        if (statement != null) {
+            try {
+                statement.close();
+            } catch (SQLException e) {
+                e.printStackTrace(System.err);
+            }
+        }
 
-        if (!isPasswordInDB(passwordId)) {
-            throw new IllegalArgumentException("password is not in the database.");
+        if (connection != null) {
+            connection.close();
         }
+    }
+
+    // Columns are read by index, in the order of fetchEntriesStatement.
+    private PasswordEntry readEntry(ResultSet rs) throws SQLException {
+        return new PasswordEntry(
+            this,
+            rs.getInt(1),
+            rs.getString(2),
+            rs.getString(3),
+            rs.getBoolean(4),
+            rs.getBoolean(5),
+            rs.getInt(6),
+            rs.getInt(7)
+        );
+    }
+
+    public int getPasswordsCount() {
+        int count = 0;
 
         try (
-            Connection connection = databaseConfig.withKey(this.databasePassword).build().createConnection(this.databaseURL);
-            PreparedStatement statement = connection.prepareStatement(updateOTPStatement);
+            PooledConnection connection = session.acquireReader();
         ) {
-            statement.setQueryTimeout(30);
+            PreparedStatement statement = connection.prepareStatement(getPasswordsCountStatement);
 
-            statement.setString(1, newOTP);
-            statement.setInt(2, passwordId);
+            statement.setQueryTimeout(30);
 
-            statement.executeUpdate();
+            try (ResultSet rs = statement.executeQuery()) {
+                if (rs.next()) {
+                    count = rs.getInt(1);
+                }
+            }
         } catch (SQLException e) {
             e.printStackTrace(System.err);
         }
+
+        return count;
     }
 
-    public String fetchNote(int passwordId) {
-        if (!isPasswordInDB(passwordId)) {
-            throw new IllegalArgumentException("password is not in the database.");
+    // Read through the entry cache. A value read by the writer inside a transaction
+    // may be rolled back, so it is not cached.
+    private String fetchField(int passwordId, EntryCache.Field field, String sql, String column) {
+        EntryCache cache = entryCache;
+
+        String value = cache.get(passwordId, field);
+
+        if (value != null) {
+            return value;
         }
 
-        String note = "";
+        long generation = cache.generation();
+
+        value = "";
 
         try (
-            Connection connection = databaseConfig.withKey(this.databasePassword).build().createConnection(this.databaseURL);
-            PreparedStatement statement = connection.prepareStatement(fetchNoteStatement);
+            PooledConnection connection = session.acquireReader();
         ) {
-            statement.setQueryTimeout(30);
+            PreparedStatement statement = connection.prepareStatement(sql);
 
+            statement.setQueryTimeout(30);
 
             statement.setInt(1, passwordId);
 
-            ResultSet rs = statement.executeQuery();
+            try (ResultSet rs = statement.executeQuery()) {
+                if (!rs.next()) {
+                    throw new IllegalArgumentException("password is not in the database.");
+                }
+
+                value = rs.getString(column);
+            }
 
-            note = rs.getString("note");
+            if (connection.getConnection().getAutoCommit()) {
+                cache.put(passwordId, field, value, generation);
+            }
         } catch (SQLException e) {
             e.printStackTrace(System.err);
         }
 
-        return note;
+        return value;
     }
 
-    public void modifyNote(int passwordId, String newNote) {
-        if (!isPasswordInDB(passwordId)) {
-            throw new IllegalArgumentException("password is not in the database.");
-        }
-
-        try (
-            Connection connection = databaseConfig.withKey(this.databasePassword).build().createConnection(this.databaseURL);
-            PreparedStatement statement = connection.prepareStatement(updateNoteStatement);
-        ) {
-            statement.setQueryTimeout(30);
+    public String fetchWebsite(int passwordId) {
+        return fetchField(passwordId, EntryCache.Field.WEBSITE, fetchWebsiteStatement, "website");
+    }
 
-            statement.setString(1, newNote);
-            statement.setInt(2, passwordId);
+    public String fetchUsername(int passwordId) {
+        return fetchField(passwordId, EntryCache.Field.USERNAME, fetchUsernameStatement, "username");
+    }
 
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            e.printStackTrace(System.err);
-        }
+    public String fetchPassword(int passwordId) {
+        return fetchField(passwordId, EntryCache.Field.PASSWORD, fetchPasswordStatement, "password");
     }
 
-    public List<String[]> fetchBackupCodes(int passwordId) {
-        if (!isPasswordInDB(passwordId)) {
-            throw new IllegalArgumentException("password is not in the database.");
+    public String[] fetchPasswordData(int passwordId) {
+        EntryCache cache = entryCache;
+
+        String[] cached = cache.get(passwordId, PASSWORD_DATA_FIELDS);
+
+        if (cached != null) {
+            return new String[] {
+                Integer.toString(passwordId),
+                cached[0],
+                cached[1],
+                cached[2],
+                cached[3],
+                cached[4],
+                cached[5]
+            };
         }
 
-        List<String[]> backupCodes = new ArrayList<>();
+        long generation = cache.generation();
+
+        String[] passwordData = new String[7];
 
         try (
-            Connection connection = databaseConfig.withKey(this.databasePassword).build().createConnection(this.databaseURL);
-            PreparedStatement statement = connection.prepareStatement(fetchBackupCodesStatement);
+            PooledConnection connection = session.acquireReader();
         ) {
+            PreparedStatement statement = connection.prepareStatement(fetchPasswordDataStatement);
+
             statement.setQueryTimeout(30);
 
             statement.setInt(1, passwordId);
 
-            ResultSet rs = statement.executeQuery();
+            try (ResultSet rs = statement.executeQuery()) {
+                if (!rs.next()) {
+                    throw new IllegalArgumentException("password is not in the database.");
+                }
 
-            while (rs.next()) {
-                String[] data = {
+                passwordData = new String[] {
                     rs.getString("id"),
-                    rs.getString("passwordId"),
-                    rs.getString("code"),
-                    rs.getString("IsUsed")
+                    rs.getString("website"),
+                    rs.getString("username"),
+                    rs.getString("password"),
+                    rs.getString("otp"),
+                    rs.getString("hasBackupCodes"),
+                    rs.getString("note")
                 };
+            }
 
-                backupCodes.add(data);
+            if (connection.getConnection().getAutoCommit()) {
+                for (int i = 0; i < PASSWORD_DATA_FIELDS.length; i++) {
+                    cache.put(passwordId, PASSWORD_DATA_FIELDS[i], passwordData[i + 1], generation);
+                }
             }
         } catch (SQLException e) {
             e.printStackTrace(System.err);
         }
 
-        return backupCodes;
+        return passwordData;
     }
 
-    public void addBackupCode(int passwordId, String backupCode) {
-        if (!isPasswordInDB(passwordId)) {
-            throw new IllegalArgumentException("password is not in the database.");
+    public int addPassword(String website, String username, String password) {
+        if (website.isEmpty()) {
+            throw new IllegalArgumentException("website cannot be empty.");
+        }
+
+        if (username.isEmpty()) {
+            throw new IllegalArgumentException("username cannot be empty.");
+        }
+
+        if (password.isEmpty()) {
+            throw new IllegalArgumentException("password cannot be empty.");
         }
 
         try (
-            Connection connection = databaseConfig.withKey(this.databasePassword).build().createConnection(this.databaseURL);
-            PreparedStatement statement = connection.prepareStatement(addBackupCodeStatement);
+            PooledConnection connection = acquireWriter();
         ) {
+            PreparedStatement statement = connection.prepareStatement(addPasswordStatement);
+
             statement.setQueryTimeout(30);
 
-            statement.setInt(1, passwordId);
-            statement.setString(2, backupCode);
+            statement.setString(1, website);
+            statement.setString(2, username);
+            statement.setString(3, password);
 
             statement.executeUpdate();
-        } catch (SQLException e) {
-            e.printStackTrace(System.err);
-        }
-    }
 
-    private boolean isBackupCodeInDB(int backupCodeId) {
-        try (
-            Connection connection = databaseConfig.withKey(this.databasePassword).build().createConnection(this.databaseURL);
-            PreparedStatement statement = connection.prepareStatement(isBackupCodeInDBStatement);
-        ) {
-            statement.setQueryTimeout(30);
+            // last_insert_rowid() is not used, it's reset after the view trigger of the SPLIT layout.
+            PreparedStatement idStatement = connection.prepareStatement(fetchLastPasswordIdStatement);
 
-            statement.setInt(1, backupCodeId);
+            idStatement.setQueryTimeout(30);
 
-            ResultSet rs = statement.executeQuery();
+            try (ResultSet rs = idStatement.executeQuery()) {
+                rs.next();
 
-            int fetchedPasswordId = rs.getInt("id");
+                int passwordId = rs.getInt(1);
 
-            if (backupCodeId == fetchedPasswordId) {
-                return true;
+                entryCache.invalidate(passwordId);
+                updateFilterIndex(passwordId, website, username);
+                queueEvent(new PasswordManagerEvent.EntryAdded(passwordId, changedEntry(passwordId)));
+
+                return passwordId;
             }
         } catch (SQLException e) {
             e.printStackTrace(System.err);
+        } finally {
+            publishPendingEvents();
         }
 
-        return false;
+        return -1;
     }
 
-    public void removeBackupCode(int backupCodeId) {
-        if (!isBackupCodeInDB(backupCodeId)) {
-            throw new IllegalArgumentException("backup code is not in the database.");
+    public void modifyWebsite(int passwordId, String newWebsite) {
+        if (newWebsite.isEmpty()) {
+            throw new IllegalArgumentException("newWebsite cannot be empty.");
         }
 
         try (
-            Connection connection = databaseConfig.withKey(this.databasePassword).build().createConnection(this.databaseURL);
-            PreparedStatement statement = connection.prepareStatement(removeBackupCodeStatement);
+            PooledConnection connection = acquireWriter();
         ) {
+            PreparedStatement statement = connection.prepareStatement(updateWebsiteStatement);
+
             statement.setQueryTimeout(30);
 
-            statement.setInt(1, backupCodeId);
+            statement.setString(1, newWebsite);
+            statement.setInt(2, passwordId);
 
-            statement.executeUpdate();
+            if (statement.executeUpdate() == 0) {
+                throw new IllegalArgumentException("password is not in the database.");
+            }
+
+            entryCache.invalidate(passwordId, EntryCache.Field.WEBSITE);
+            updateFilterIndex(passwordId, newWebsite, null);
+            queueEvent(new PasswordManagerEvent.EntryUpdated(passwordId, Set.of("website"), changedEntry(passwordId)));
         } catch (SQLException e) {
             e.printStackTrace(System.err);
+        } finally {
+            publishPendingEvents();
         }
     }
 
-    public void updateBackupCodeStatus(int backupCodeId, int status) {
-        if (!isBackupCodeInDB(backupCodeId)) {
-            throw new IllegalArgumentException("backup code is not in the database.");
-        }
-
-        if (!(status == 1 || status == 0)) {
-            throw new IllegalArgumentException("status must be either 0 or 1.");
+    public void modifyUsername(int passwordId, String newUsername) {
+        if (newUsername.isEmpty()) {
+            throw new IllegalArgumentException("newUsername cannot be empty.");
         }
 
         try (
-            Connection connection = databaseConfig.withKey(this.databasePassword).build().createConnection(this.databaseURL);
-            PreparedStatement statement = connection.prepareStatement(updateBackupCodeStatusStatement);
+            PooledConnection connection = acquireWriter();
         ) {
+            PreparedStatement statement = connection.prepareStatement(updateUsernameStatement);
+
             statement.setQueryTimeout(30);
 
-            statement.setInt(1, status);
-            statement.setInt(2, backupCodeId);
+            statement.setString(1, newUsername);
+            statement.setInt(2, passwordId);
 
-            statement.executeUpdate();
+            if (statement.executeUpdate() == 0) {
+                throw new IllegalArgumentException("password is not in the database.");
+            }
+
+            entryCache.invalidate(passwordId, EntryCache.Field.USERNAME);
+            updateFilterIndex(passwordId, null, newUsername);
+            queueEvent(new PasswordManagerEvent.EntryUpdated(passwordId, Set.of("username"), changedEntry(passwordId)));
         } catch (SQLException e) {
             e.printStackTrace(System.err);
+        } finally {
+            publishPendingEvents();
         }
     }
 
-    private int getBackupCodesCount(int passwordId) {
-        int count = 0;
+    public void modifyPassword(int passwordId, String newPassword) {
+        if (newPassword.isEmpty()) {
+            throw new IllegalArgumentException("newPassword cannot be empty.");
+        }
 
         try (
-            Connection connection = databaseConfig.withKey(this.databasePassword).build().createConnection(this.databaseURL);
-            PreparedStatement statement = connection.prepareStatement(getBackupCodesCountStatement);
+            PooledConnection connection = acquireWriter();
         ) {
-            statement.setQueryTimeout(30);
+            PreparedStatement statement = connection.prepareStatement(updatePasswordStatement);
 
-            statement.setInt(1, passwordId);
+            statement.setQueryTimeout(30);
 
-            ResultSet rs = statement.executeQuery();
+            statement.setString(1, newPassword);
+            statement.setInt(2, passwordId);
 
-            if (rs.next()) {
-                count = rs.getInt(1);
+            if (statement.executeUpdate() == 0) {
+                throw new IllegalArgumentException("password is not in the database.");
             }
+
+            entryCache.invalidate(passwordId, EntryCache.Field.PASSWORD);
+            queueEvent(new PasswordManagerEvent.EntryUpdated(passwordId, Set.of("password"), changedEntry(passwordId)));
         } catch (SQLException e) {
             e.printStackTrace(System.err);
+        } finally {
+            publishPendingEvents();
         }
-
-        return count;
     }
 
-    public void updateHasBackupCodeStatus(int passwordId) {
-        if (!isPasswordInDB(passwordId)) {
-            throw new IllegalArgumentException("password is not in the database.");
+    public void updateEntry(int passwordId, EntryPatch patch) {
+        if (patch.isEmpty()) {
+            return;
+        }
+
+        EntryPatch passwordsPatch = patch;
+        EntryPatch secretsPatch = new EntryPatch();
+
+        // With SPLIT secrets, the secret fields are in another table.
+        if (layout == PasswordManagerSchema.Layout.SPLIT) {
+            passwordsPatch = patch.retain(column -> !SECRET_COLUMNS.contains(column));
+            secretsPatch = patch.retain(SECRET_COLUMNS::contains);
         }
 
         try (
-            Connection connection = databaseConfig.withKey(this.databasePassword).build().createConnection(this.databaseURL);
-            PreparedStatement statement = connection.prepareStatement(updateHasBackupCodeStatusStatement);
+            PooledConnection connection = acquireWriter();
         ) {
-            statement.setQueryTimeout(30);
-
-            int count = getBackupCodesCount(passwordId);
-            int status = 0;
+            Connection writeConnection = connection.getConnection();
+            boolean isOuterTransaction = writeConnection.getAutoCommit() && !passwordsPatch.isEmpty() && !secretsPatch.isEmpty();
 
-            if (count > 0) {
-                status = 1;
+            if (isOuterTransaction) {
+                writeConnection.setAutoCommit(false);
             }
 
-            statement.setInt(1, status);
-            statement.setInt(2, passwordId);
+            try {
+                updateTable(connection, "passwords", passwordId, passwordsPatch);
+                updateTable(connection, "secrets", passwordId, secretsPatch);
 
-            statement.executeUpdate();
+                if (isOuterTransaction) {
+                    writeConnection.commit();
+                }
+
+                for (String column : patch.getChanges().keySet()) {
+                    entryCache.invalidate(passwordId, EntryCache.Field.valueOf(column.toUpperCase(Locale.ROOT)));
+                }
+
+                if (patch.getChanges().containsKey("website") || patch.getChanges().containsKey("username")) {
+                    updateFilterIndex(passwordId, patch.getChanges().get("website"), patch.getChanges().get("username"));
+                }
+
+                queueEvent(new PasswordManagerEvent.EntryUpdated(passwordId, patch.getChanges().keySet(), changedEntry(passwordId)));
+            } catch (SQLException | RuntimeException e) {
+                if (isOuterTransaction) {
+                    writeConnection.rollback();
+                }
+
+                throw e;
+            } finally {
+                if (isOuterTransaction) {
+                    writeConnection.setAutoCommit(true);
+                }
+            }
         } catch (SQLException e) {
             e.printStackTrace(System.err);
+        } finally {
+            publishPendingEvents();
         }
     }
 
-    public void modifyBackupCode(int backupCodeId, String newBackupCode) {
-        if (newBackupCode.isEmpty()) {
-            throw new IllegalArgumentException("newBackupCode cannot be empty.");
+    private static void updateTable(PooledConnection connection, String table, int passwordId, EntryPatch patch) throws SQLException {
+        if (patch.isEmpty()) {
+            return;
+        }
+
+        String[] values = patch.getValues();
+
+        // One statement per combination of fields, each one is cached like the constants.
+        PreparedStatement statement = connection.prepareStatement(
+            "UPDATE " + table + " SET " + patch.getSetClause() + " "
+            + "WHERE id = ?;"
+        );
+
+        statement.setQueryTimeout(30);
+
+        for (int i = 0; i < values.length; i++) {
+            statement.setString(i + 1, values[i]);
         }
 
-        if (!isBackupCodeInDB(backupCodeId)) {
-            throw new IllegalArgumentException("backup code is not in the database.");
+        statement.setInt(values.length + 1, passwordId);
+
+        if (statement.executeUpdate() == 0) {
+            throw new IllegalArgumentException("password is not in the database.");
         }
+    }
 
+    public void deletePassword(int passwordId) {
         try (
-            Connection connection = databaseConfig.withKey(this.databasePassword).build().createConnection(this.databaseURL);
-            PreparedStatement statement = connection.prepareStatement(updateBackupCodeStatement);
+            PooledConnection connection = acquireWriter();
         ) {
+            PreparedStatement statement = connection.prepareStatement(deletePasswordStatement);
+
             statement.setQueryTimeout(30);
 
-            statement.setString(1, newBackupCode);
-            statement.setInt(2, backupCodeId);
+            statement.setInt(1, passwordId);
 
-            statement.executeUpdate();
+            if (statement.executeUpdate() == 0) {
+                throw new IllegalArgumentException("password is not in the database.");
+            }
+
+            entryCache.invalidate(passwordId);
+            removeFromFilterIndex(passwordId);
+            queueEvent(new PasswordManagerEvent.EntryDeleted(passwordId));
         } catch (SQLException e) {
             e.printStackTrace(System.err);
+        } finally {
+            publishPendingEvents();
         }
     }
+
+    public String fetchOTP(int passwordId) {
+        return fetchField(passwordId, EntryCache.Field.OTP, fetchOTPStatement, "otp");
+    }
+
+    public void modifyOTP(int passwordId, String newOTP) {
+        // If newOTP is empty then there's no OTP.
+
+        try (
+            PooledConnection connection = acquireWriter();
+        ) {
+            PreparedStatement statement = connection.prepareStatement(updateOTPStatement);
+
+            statement.setQueryTimeout(30);
+
+            statement.setString(1, newOTP);
+            statement.setInt(2, passwordId);
+
+            if (statement.executeUpdate() == 0) {
+                throw new IllegalArgumentException("password is not in the database.");
+            }
+
+            entryCache.invalidate(passwordId, EntryCache.Field.OTP);
+            queueEvent(new PasswordManagerEvent.EntryUpdated(passwordId, Set.of("otp"), changedEntry(passwordId)));
+        } catch (SQLException e) {
+            e.printStackTrace(System.err);
+        } finally {
+            publishPendingEvents();
+        }
+    }
+
+    public String fetchNote(int passwordId) {
+        return fetchField(passwordId, EntryCache.Field.NOTE, fetchNoteStatement, "note");
+    }
+
+    public void modifyNote(int passwordId, String newNote) {
+        try (
+            PooledConnection connection = acquireWriter();
+        ) {
+            PreparedStatement statement = connection.prepareStatement(updateNoteStatement);
+
+            statement.setQueryTimeout(30);
+
+            statement.setString(1, newNote);
+            statement.setInt(2, passwordId);
+
+            if (statement.executeUpdate() == 0) {
+                throw new IllegalArgumentException("password is not in the database.");
+            }
+
+            entryCache.invalidate(passwordId, EntryCache.Field.NOTE);
+            queueEvent(new PasswordManagerEvent.EntryUpdated(passwordId, Set.of("note"), changedEntry(passwordId)));
+        } catch (SQLException e) {
+            e.printStackTrace(System.err);
+        } finally {
+            publishPendingEvents();
+        }
+    }
+
+    public List<String[]> fetchBackupCodes(int passwordId) {
+        List<String[]> backupCodes = new ArrayList<>();
+
+        try (
+            PooledConnection connection = session.acquireReader();
+        ) {
+            PreparedStatement statement = connection.prepareStatement(fetchBackupCodesStatement);
+
+            statement.setQueryTimeout(30);
+
+            statement.setInt(1, passwordId);
+
+            try (ResultSet rs = statement.executeQuery()) {
+                if (!rs.next()) {
+                    throw new IllegalArgumentException("password is not in the database.");
+                }
+
+                // The password exists but has no backup codes.
+                if (rs.getString("id") == null) {
+                    return backupCodes;
+                }
+
+                do {
+                    String[] data = {
+                        rs.getString("id"),
+                        rs.getString("passwordId"),
+                        rs.getString("code"),
+                        rs.getString("IsUsed")
+                    };
+
+                    backupCodes.add(data);
+                } while (rs.next());
+            }
+        } catch (SQLException e) {
+            e.printStackTrace(System.err);
+        }
+
+        return backupCodes;
+    }
+
+    public void addBackupCode(int passwordId, String backupCode) {
+        try (
+            PooledConnection connection = acquireWriter();
+        ) {
+            PreparedStatement statement = connection.prepareStatement(addBackupCodeStatement);
+
+            statement.setQueryTimeout(30);
+
+            statement.setString(1, backupCode);
+            statement.setInt(2, passwordId);
+
+            if (statement.executeUpdate() == 0) {
+                throw new IllegalArgumentException("password is not in the database.");
+            }
+
+            entryCache.invalidate(passwordId, EntryCache.Field.HAS_BACKUP_CODES);
+            queueEvent(new PasswordManagerEvent.BackupCodesChanged(passwordId, changedEntry(passwordId)));
+        } catch (SQLException e) {
+            e.printStackTrace(System.err);
+        } finally {
+            publishPendingEvents();
+        }
+    }
+
+    public void removeBackupCode(int backupCodeId) {
+        try (
+            PooledConnection connection = acquireWriter();
+        ) {
+            int passwordId = fetchBackupCodePasswordId(connection, backupCodeId);
+
+            PreparedStatement statement = connection.prepareStatement(removeBackupCodeStatement);
+
+            statement.setQueryTimeout(30);
+
+            statement.setInt(1, backupCodeId);
+
+            if (statement.executeUpdate() == 0) {
+                throw new IllegalArgumentException("backup code is not in the database.");
+            }
+
+            entryCache.invalidate(passwordId, EntryCache.Field.HAS_BACKUP_CODES);
+            queueEvent(new PasswordManagerEvent.BackupCodesChanged(passwordId, changedEntry(passwordId)));
+        } catch (SQLException e) {
+            e.printStackTrace(System.err);
+        } finally {
+            publishPendingEvents();
+        }
+    }
+
+    public void updateBackupCodeStatus(int backupCodeId, int status) {
+        if (!(status == 1 || status == 0)) {
+            throw new IllegalArgumentException("status must be either 0 or 1.");
+        }
+
+        try (
+            PooledConnection connection = acquireWriter();
+        ) {
+            int passwordId = fetchBackupCodePasswordId(connection, backupCodeId);
+
+            PreparedStatement statement = connection.prepareStatement(updateBackupCodeStatusStatement);
+
+            statement.setQueryTimeout(30);
+
+            statement.setInt(1, status);
+            statement.setInt(2, backupCodeId);
+
+            if (statement.executeUpdate() == 0) {
+                throw new IllegalArgumentException("backup code is not in the database.");
+            }
+
+            queueEvent(new PasswordManagerEvent.BackupCodesChanged(passwordId, changedEntry(passwordId)));
+        } catch (SQLException e) {
+            e.printStackTrace(System.err);
+        } finally {
+            publishPendingEvents();
+        }
+    }
+
+    public void updateHasBackupCodeStatus(int passwordId) {
+        try (
+            PooledConnection connection = acquireWriter();
+        ) {
+            PreparedStatement statement = connection.prepareStatement(updateHasBackupCodeStatusStatement);
+
+            statement.setQueryTimeout(30);
+
+            statement.setInt(1, passwordId);
+
+            if (statement.executeUpdate() == 0) {
+                throw new IllegalArgumentException("password is not in the database.");
+            }
+
+            entryCache.invalidate(passwordId, EntryCache.Field.HAS_BACKUP_CODES);
+            queueEvent(new PasswordManagerEvent.BackupCodesChanged(passwordId, changedEntry(passwordId)));
+        } catch (SQLException e) {
+            e.printStackTrace(System.err);
+        } finally {
+            publishPendingEvents();
+        }
+    }
+
+    public void modifyBackupCode(int backupCodeId, String newBackupCode) {
+        if (newBackupCode.isEmpty()) {
+            throw new IllegalArgumentException("newBackupCode cannot be empty.");
+        }
+
+        try (
+            PooledConnection connection = acquireWriter();
+        ) {
+            int passwordId = fetchBackupCodePasswordId(connection, backupCodeId);
+
+            PreparedStatement statement = connection.prepareStatement(updateBackupCodeStatement);
+
+            statement.setQueryTimeout(30);
+
+            statement.setString(1, newBackupCode);
+            statement.setInt(2, backupCodeId);
+
+            if (statement.executeUpdate() == 0) {
+                throw new IllegalArgumentException("backup code is not in the database.");
+            }
+
+            queueEvent(new PasswordManagerEvent.BackupCodesChanged(passwordId, changedEntry(passwordId)));
+        } catch (SQLException e) {
+            e.printStackTrace(System.err);
+        } finally {
+            publishPendingEvents();
+        }
+    }
+
+    // -1 if the backup code is not in the database.
+    private int fetchBackupCodePasswordId(PooledConnection connection, int backupCodeId) throws SQLException {
+        PreparedStatement statement = connection.prepareStatement(fetchBackupCodePasswordIdStatement);
+
+        statement.setQueryTimeout(30);
+
+        statement.setInt(1, backupCodeId);
+
+        try (ResultSet rs = statement.executeQuery()) {
+            return rs.next() ? rs.getInt("passwordId") : -1;
+        }
+    }
+
+    // The writer of the write methods. Inside a batch, the rows it queued are written first,
+    // so that the writes keep their order.
+    private PooledConnection acquireWriter() throws SQLException {
+        PooledConnection connection = session.acquireWriter();
+
+        try {
+            for (SQLiteBatchWriter batchWriter : activeBatchWriters) {
+                batchWriter.flush();
+            }
+        } catch (RuntimeException e) {
+            connection.close();
+            throw e;
+        }
+
+        return connection;
+    }
+
+    public BatchWriter.Result batch(
+        Consumer<BatchWriter> operations,
+        int chunkSize,
+        BatchWriter.ProgressListener progressListener
+    ) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("chunkSize must be at least 1.");
+        }
+
+        long start = System.nanoTime();
+
+        try (
+            PooledConnection connection = acquireWriter();
+        ) {
+            Connection writer = connection.getConnection();
+
+            // A batch started inside another one joins its transaction.
+            boolean isOutermostBatch = writer.getAutoCommit();
+
+            SQLiteBatchWriter batchWriter = new SQLiteBatchWriter(connection, chunkSize, progressListener, start);
+
+            writer.setAutoCommit(false);
+            activeBatchWriters.addLast(batchWriter);
+
+            try {
+                operations.accept(batchWriter);
+                batchWriter.flush();
+
+                if (isOutermostBatch) {
+                    writer.commit();
+                }
+
+                return new BatchWriter.Result(batchWriter.rowsWritten, System.nanoTime() - start, true);
+            } catch (RuntimeException e) {
+                batchWriter.clear();
+
+                if (!isOutermostBatch) {
+                    throw e;
+                }
+
+                writer.rollback();
+
+                if (e instanceof BatchFailedException) {
+                    e.getCause().printStackTrace(System.err);
+
+                    return new BatchWriter.Result(0, System.nanoTime() - start, false);
+                }
+
+                throw e;
+            } catch (SQLException e) {
+                batchWriter.clear();
+
+                if (isOutermostBatch) {
+                    writer.rollback();
+                }
+
+                throw e;
+            } finally {
+                activeBatchWriters.removeLast();
+                batchWriter.close();
+
+                if (isOutermostBatch) {
+                    writer.setAutoCommit(true);
+
+                    // Rebuilt while the writer is still held, the batch may have changed any password.
+                    if (filterIndex != null) {
+                        filterIndex = newFilterIndex();
+                    }
+                    entryCache.clear();
+                    queueEvent(new PasswordManagerEvent.AllEntriesChanged());
+                }
+            }
+        } catch (SQLException e) {
+            e.printStackTrace(System.err);
+        } finally {
+            publishPendingEvents();
+        }
+
+        return new BatchWriter.Result(0, System.nanoTime() - start, false);
+    }
+
+    // Carries SQLExceptions out of the BatchWriter methods, which cannot throw them.
+    private static class BatchFailedException extends RuntimeException {
+        BatchFailedException(SQLException cause) {
+            super(cause);
+        }
+    }
+
+    private class SQLiteBatchWriter implements BatchWriter {
+        private final PooledConnection connection;
+        private final int chunkSize;
+        private final BatchWriter.ProgressListener progressListener;
+        private final long start;
+
+        // Not the cached statements of the connection, a write made during the batch with the
+        // same statement would send or drop the queued rows.
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+        private PreparedStatement currentStatement;
+        private boolean isCurrentStatementChecked = false;
+        private int pendingRows = 0;
+        private long rowsWritten = 0;
+
+        SQLiteBatchWriter(
+            PooledConnection connection,
+            int chunkSize,
+            BatchWriter.ProgressListener progressListener,
+            long start
+        ) {
+            this.connection = connection;
+            this.chunkSize = chunkSize;
+            this.progressListener = progressListener;
+            this.start = start;
+        }
+
+        // Rows are queued per statement, switching to another statement sends the
+        // pending ones first so that the writes keep their order.
+        // isChecked fails the batch if one of its rows changes nothing, which is a missing id.
+        // addPassword() is not checked, SQLite doesn't count the inserts through the view of
+        // the SPLIT layout.
+        private PreparedStatement getStatement(String sql, boolean isChecked) {
+            try {
+                PreparedStatement statement = statements.get(sql);
+
+                if (statement == null) {
+                    statement = connection.getConnection().prepareStatement(sql);
+                    statements.put(sql, statement);
+                }
+
+                if (statement != currentStatement) {
+                    flush();
+                    currentStatement = statement;
+                    isCurrentStatementChecked = isChecked;
+                }
+
+                return statement;
+            } catch (SQLException e) {
+                throw new BatchFailedException(e);
+            }
+        }
+
+        private void queue(PreparedStatement statement) {
+            try {
+                statement.addBatch();
+            } catch (SQLException e) {
+                throw new BatchFailedException(e);
+            }
+
+            pendingRows++;
+
+            if (pendingRows >= chunkSize) {
+                flush();
+            }
+        }
+
+        void flush() {
+            if (pendingRows == 0) {
+                return;
+            }
+
+            int[] updateCounts;
+
+            try {
+                updateCounts = currentStatement.executeBatch();
+            } catch (SQLException e) {
+                throw new BatchFailedException(e);
+            }
+
+            if (isCurrentStatementChecked) {
+                for (int i = 0; i < updateCounts.length; i++) {
+                    if (updateCounts[i] == 0) {
+                        throw new BatchFailedException(new SQLException(
+                            "password is not in the database (row " + (rowsWritten + i + 1) + " of the batch)."
+                        ));
+                    }
+                }
+            }
+
+            rowsWritten += pendingRows;
+            pendingRows = 0;
+
+            if (progressListener != null) {
+                progressListener.onProgress(rowsWritten, System.nanoTime() - start);
+            }
+        }
+
+        void clear() {
+            if (currentStatement == null) {
+                return;
+            }
+
+            try {
+                currentStatement.clearBatch();
+            } catch (SQLException e) {
+                e.printStackTrace(System.err);
+            }
+
+            pendingRows = 0;
+        }
+
+        void close() {
+            for (PreparedStatement statement : statements.values()) {
+                try {
+                    statement.close();
+                } catch (SQLException e) {
+                    e.printStackTrace(System.err);
+                }
+            }
+
+            statements.clear();
+            currentStatement = null;
+        }
+
+        public void addPassword(NewPasswordEntry entry) {
+            PreparedStatement statement = getStatement(addPasswordEntryStatement, false);
+
+            try {
+                statement.setString(1, entry.website());
+                statement.setString(2, entry.username());
+                statement.setString(3, entry.password());
+                statement.setString(4, entry.otp());
+                statement.setString(5, entry.note());
+            } catch (SQLException e) {
+                throw new BatchFailedException(e);
+            }
+
+            queue(statement);
+        }
+
+        public void addPassword(String website, String username, String password) {
+            addPassword(new NewPasswordEntry(website, username, password));
+        }
+
+        private void queueUpdate(String sql, String value, int id) {
+            PreparedStatement statement = getStatement(sql, true);
+
+            try {
+                statement.setString(1, value);
+                statement.setInt(2, id);
+            } catch (SQLException e) {
+                throw new BatchFailedException(e);
+            }
+
+            queue(statement);
+        }
+
+        public void modifyWebsite(int passwordId, String newWebsite) {
+            if (newWebsite.isEmpty()) {
+                throw new IllegalArgumentException("newWebsite cannot be empty.");
+            }
+
+            queueUpdate(updateWebsiteStatement, newWebsite, passwordId);
+        }
+
+        public void modifyUsername(int passwordId, String newUsername) {
+            if (newUsername.isEmpty()) {
+                throw new IllegalArgumentException("newUsername cannot be empty.");
+            }
+
+            queueUpdate(updateUsernameStatement, newUsername, passwordId);
+        }
+
+        public void modifyPassword(int passwordId, String newPassword) {
+            if (newPassword.isEmpty()) {
+                throw new IllegalArgumentException("newPassword cannot be empty.");
+            }
+
+            queueUpdate(updatePasswordStatement, newPassword, passwordId);
+        }
+
+        public void modifyOTP(int passwordId, String newOTP) {
+            queueUpdate(updateOTPStatement, newOTP, passwordId);
+        }
+
+        public void modifyNote(int passwordId, String newNote) {
+            queueUpdate(updateNoteStatement, newNote, passwordId);
+        }
+
+        public void deletePassword(int passwordId) {
+            PreparedStatement statement = getStatement(deletePasswordStatement, true);
+
+            try {
+                statement.setInt(1, passwordId);
+            } catch (SQLException e) {
+                throw new BatchFailedException(e);
+            }
+
+            queue(statement);
+        }
+
+        public void addBackupCode(int passwordId, String backupCode) {
+            PreparedStatement statement = getStatement(addBackupCodeStatement, true);
+
+            try {
+                statement.setString(1, backupCode);
+                statement.setInt(2, passwordId);
+            } catch (SQLException e) {
+                throw new BatchFailedException(e);
+            }
+
+            queue(statement);
+        }
+    }
+
+    public void addChangeListener(PasswordManagerEvent.Listener listener) {
+        changeListeners.add(listener);
+    }
+
+    public void removeChangeListener(PasswordManagerEvent.Listener listener) {
+        changeListeners.remove(listener);
+    }
+
+    // Called with the writer held, so the events are queued in the order of the writes.
+    // They are published by publishPendingEvents() once the writer is released.
+    // The writes made inside a batch queue nothing, they may be rolled back with it and
+    // its AllEntriesChanged covers them.
+    private void queueEvent(PasswordManagerEvent event) {
+        if (!changeListeners.isEmpty() && activeBatchWriters.isEmpty()) {
+            pendingEvents.add(event);
+        }
+    }
+
+    // The row after the write for the event, read with the writer still held, so that the
+    // listeners don't query it again. null if nobody listens or inside a batch.
+    private PasswordEntry changedEntry(int passwordId) {
+        if (changeListeners.isEmpty() || !activeBatchWriters.isEmpty()) {
+            return null;
+        }
+
+        return fetchEntry(passwordId);
+    }
+
+    // Called by the write methods after they release the writer. A thread that still holds it
+    // (a write inside a batch) leaves the events to the outermost write. The events are
+    // published by one thread at a time, the one that finds others queued publishes them too.
+    private void publishPendingEvents() {
+        if (session.isWriterHeldByCurrentThread()) {
+            return;
+        }
+
+        do {
+            if (!publishLock.tryLock()) {
+                return;
+            }
+
+            try {
+                PasswordManagerEvent event;
+
+                while ((event = pendingEvents.poll()) != null) {
+                    publish(event);
+                }
+            } finally {
+                publishLock.unlock();
+            }
+        } while (!pendingEvents.isEmpty());
+    }
+
+    // A failing listener doesn't fail the write, which is already done.
+    private void publish(PasswordManagerEvent event) {
+        for (PasswordManagerEvent.Listener listener : changeListeners) {
+            try {
+                listener.onChange(event);
+            } catch (RuntimeException e) {
+                e.printStackTrace(System.err);
+            }
+        }
+    }
+
+    public boolean rekey(String newPassword, RekeyListener listener) {
+        if (newPassword.isEmpty()) {
+            throw new IllegalArgumentException("newPassword cannot be empty.");
+        }
+
+        // The writer is taken for the swap, a batch would have uncommitted rows that are not copied.
+        if (session.isWriterHeldByCurrentThread()) {
+            throw new IllegalStateException("cannot rekey the database inside a batch.");
+        }
+
+        Path rekeyedPath = databasePath.resolveSibling(databasePath.getFileName() + ".rekey");
+
+        try {
+            // Left by a rekey that was interrupted.
+            Files.deleteIfExists(rekeyedPath);
+
+            // A new file gets a new salt.
+            createDatabase(rekeyedPath, newPassword);
+
+            PasswordManagerKey rekeyedKey = PasswordManagerKey.derive(rekeyedPath, newPassword);
+            boolean isReplaced = false;
+
+            // Held until the files are swapped, so that no write happens after the copy.
+            try (
+                PooledConnection writer = copyToRekeyed(rekeyedPath, rekeyedKey, listener);
+            ) {
+                if (writer != null) {
+                    session.replaceDatabase(rekeyedPath, rekeyedKey);
+                    isReplaced = true;
+                }
+            } finally {
+                if (!isReplaced) {
+                    rekeyedKey.destroy();
+                    Files.deleteIfExists(rekeyedPath);
+                }
+            }
+
+            return isReplaced;
+        } catch (SQLException | IOException e) {
+            e.printStackTrace(System.err);
+        }
+
+        return false;
+    }
+
+    // Returns with the writer held once the rekeyed database has a copy of the rows that nothing
+    // was written after, so that the files can be swapped. The copy itself is made without the
+    // writer, and made again if a write happens meanwhile. null if the listener cancels or the
+    // database keeps changing. The connections to both files are closed when it returns.
+    private PooledConnection copyToRekeyed(Path rekeyedPath, PasswordManagerKey rekeyedKey, RekeyListener listener) throws SQLException {
+        try (
+            Connection connection = session.openConnection();
+            Connection rekeyedConnection = rekeyedKey.openConnection("jdbc:sqlite:file:" + rekeyedPath);
+        ) {
+            PasswordManagerSchema.upgrade(rekeyedConnection);
+
+            if (layout == PasswordManagerSchema.Layout.SPLIT) {
+                PasswordManagerSchema.splitSecrets(rekeyedConnection);
+            }
+
+            for (int attempt = 1; attempt <= REKEY_ATTEMPTS; attempt++) {
+                long dataVersion = dataVersion(connection);
+
+                rekeyedConnection.setAutoCommit(false);
+
+                CopyResult result = copyRows(connection, rekeyedConnection, listener, dataVersion);
+
+                if (result == CopyResult.CANCELLED) {
+                    rekeyedConnection.rollback();
+
+                    return null;
+                }
+
+                if (result == CopyResult.COPIED) {
+                    PooledConnection writer = session.acquireWriter();
+                    boolean isCommitted = false;
+
+                    try {
+                        if (dataVersion(connection) == dataVersion) {
+                            rekeyedConnection.commit();
+                            isCommitted = true;
+
+                            return writer;
+                        }
+                    } finally {
+                        if (!isCommitted) {
+                            writer.close();
+                        }
+                    }
+                }
+
+                rekeyedConnection.rollback();
+            }
+        }
+
+        System.err.println("The database kept changing while it was rekeyed.");
+
+        return null;
+    }
+
+    // Changes when another connection commits, see PRAGMA data_version.
+    private static long dataVersion(Connection connection) throws SQLException {
+        try (
+            Statement statement = connection.createStatement();
+        ) {
+            statement.setQueryTimeout(30);
+
+            try (ResultSet rs = statement.executeQuery("PRAGMA data_version;")) {
+                rs.next();
+
+                return rs.getLong(1);
+            }
+        }
+    }
+
+    // Copies the rows of every table to the transaction of the rekeyed database, which is
+    // left to the caller. The rows are read REKEY_CHUNK_SIZE at a time, each chunk in its own
+    // read transaction, so that the writes are only held off for a chunk and not for the copy.
+    // Stops as soon as a chunk sees that the database changed since dataVersion was read.
+    private CopyResult copyRows(Connection connection, Connection rekeyedConnection, RekeyListener listener, long dataVersion) throws SQLException {
+        String[][] tables = layout == PasswordManagerSchema.Layout.SPLIT ? SPLIT_REKEY_TABLES : INLINE_REKEY_TABLES;
+        long totalRows = 0;
+
+        // Committing ends the read transaction, the next read starts another one.
+        connection.setAutoCommit(false);
+
+        try {
+            // The first read of each transaction, the following ones see the same database.
+            if (dataVersion(connection) != dataVersion) {
+                return CopyResult.CHANGED;
+            }
+
+            try (Statement statement = connection.createStatement()) {
+                statement.setQueryTimeout(30);
+
+                for (String[] table : tables) {
+                    try (ResultSet rs = statement.executeQuery("SELECT COUNT(*) FROM " + table[0] + ";")) {
+                        if (rs.next()) {
+                            totalRows += rs.getLong(1);
+                        }
+                    }
+                }
+            }
+
+            connection.commit();
+
+            long rowsCopied = 0;
+
+            for (String[] table : tables) {
+                int columnCount = table[1].split(", ").length;
+                String placeholders = String.join(", ", Collections.nCopies(columnCount, "?"));
+
+                try (
+                    PreparedStatement select = connection.prepareStatement(
+                        "SELECT " + table[1] + " FROM " + table[0] + " WHERE id > ? ORDER BY id LIMIT " + REKEY_CHUNK_SIZE + ";"
+                    );
+                    PreparedStatement insert = rekeyedConnection.prepareStatement(
+                        "INSERT INTO " + table[0] + " (" + table[1] + ") VALUES (" + placeholders + ");"
+                    );
+                ) {
+                    select.setQueryTimeout(30);
+
+                    long lastId = Long.MIN_VALUE;
+                    int chunkRows;
+
+                    do {
+                        if (listener != null && listener.isCancelled()) {
+                            return CopyResult.CANCELLED;
+                        }
+
+                        if (dataVersion(connection) != dataVersion) {
+                            return CopyResult.CHANGED;
+                        }
+
+                        select.setLong(1, lastId);
+                        chunkRows = 0;
+
+                        try (ResultSet rs = select.executeQuery()) {
+                            while (rs.next()) {
+                                for (int i = 1; i <= columnCount; i++) {
+                                    insert.setObject(i, rs.getObject(i));
+                                }
+
+                                insert.addBatch();
+                                chunkRows++;
+
+                                lastId = rs.getLong("id");
+                            }
+                        }
+
+                        connection.commit();
+
+                        if (chunkRows > 0) {
+                            insert.executeBatch();
+
+                            rowsCopied += chunkRows;
+
+                            if (listener != null) {
+                                listener.onProgress(rowsCopied, totalRows);
+                            }
+                        }
+                    } while (chunkRows == REKEY_CHUNK_SIZE);
+                }
+            }
+
+            if (listener != null && listener.isCancelled()) {
+                return CopyResult.CANCELLED;
+            }
+
+            return CopyResult.COPIED;
+        } finally {
+            // Back to autocommit, data_version is read again outside of a transaction.
+            connection.rollback();
+            connection.setAutoCommit(true);
+        }
+    }
+
+    // Number of read-only connections kept for fetches and how long they can stay idle.
+    public void configurePool(int readConnections, Duration idleTimeout) {
+        session.configurePool(readConnections, idleTimeout);
+    }
+
+    public PasswordManagerConnectionPool.Statistics getPoolStatistics() {
+        return session.getPoolStatistics();
+    }
+
+    // PasswordManagerProfile.SAFE unless changed.
+    public PasswordManagerProfile getPerformanceProfile() {
+        return session.getProfile();
+    }
+
+    // Saved in the vault, it is also used the next time the vault is opened.
+    public void setPerformanceProfile(PasswordManagerProfile profile) {
+        try (
+            PooledConnection connection = acquireWriter();
+        ) {
+            profile.store(connection.getConnection());
+        } catch (SQLException e) {
+            e.printStackTrace(System.err);
+        }
+
+        // After the writer is released, the pool is replaced.
+        session.setProfile(profile);
+    }
+
+    // Largest number of chars cached and how long a password, otp or note stays in the cache,
+    // EntryCache.DEFAULT_MAX_CHARS and EntryCache.DEFAULT_SECRET_TTL unless changed.
+    public synchronized void configureCache(int maxChars, Duration secretTtl) {
+        EntryCache previous = entryCache;
+
+        entryCache = new EntryCache(maxChars, secretTtl);
+        previous.close();
+    }
+
+    public EntryCache.Statistics getCacheStatistics() {
+        return entryCache.getStatistics();
+    }
+
+    public void close() {
+        entryCache.close();
+        session.close();
+    }
 }
@@ -0,0 +1,344 @@
+package com.raphaeltannous;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * PasswordManagerSchema
+ *
+ * Upgrades a database in place, one version at a time. The version is stored in
+ * PRAGMA user_version, databases created before it was used are version 0 (the
+ * tables created by PasswordManagerSQLite.createDatabase()).
+ */
+public class PasswordManagerSchema {
+    public static final int VERSION = 5;
+
+    private PasswordManagerSchema() {}
+
+    // Full-text search, with prefix indexes so that short prefixes don't scan the terms.
+    private static final String SEARCH_TABLE = (
+        "CREATE VIRTUAL TABLE passwordsSearch USING fts5(website, username, note, prefix = '2 3');"
+    );
+
+    private static final String SEARCH_AFTER_DELETE_TRIGGER = (
+        "CREATE TRIGGER passwordsSearchAfterDelete AFTER DELETE ON passwords BEGIN "
+        + "DELETE FROM passwordsSearch WHERE rowid = OLD.id; "
+        + "END;"
+    );
+
+    // With SPLIT secrets the note is inserted after the password row, by the view trigger.
+    private static final String SPLIT_SEARCH_AFTER_INSERT_TRIGGER = (
+        "CREATE TRIGGER passwordsSearchAfterInsert AFTER INSERT ON passwords BEGIN "
+        + "INSERT INTO passwordsSearch (rowid, website, username, note) "
+        + "VALUES (NEW.id, NEW.website, NEW.username, ''); "
+        + "END;"
+    );
+
+    private static final String SPLIT_SEARCH_AFTER_UPDATE_TRIGGER = (
+        "CREATE TRIGGER passwordsSearchAfterUpdate AFTER UPDATE OF website, username ON passwords BEGIN "
+        + "UPDATE passwordsSearch SET website = NEW.website, username = NEW.username "
+        + "WHERE rowid = NEW.id; "
+        + "END;"
+    );
+
+    private static final String SPLIT_SECRETS_SEARCH_AFTER_INSERT_TRIGGER = (
+        "CREATE TRIGGER secretsSearchAfterInsert AFTER INSERT ON secrets BEGIN "
+        + "UPDATE passwordsSearch SET note = IFNULL(NEW.note, '') WHERE rowid = NEW.id; "
+        + "END;"
+    );
+
+    private static final String SPLIT_SECRETS_SEARCH_AFTER_UPDATE_TRIGGER = (
+        "CREATE TRIGGER secretsSearchAfterUpdate AFTER UPDATE OF note ON secrets BEGIN "
+        + "UPDATE passwordsSearch SET note = IFNULL(NEW.note, '') WHERE rowid = NEW.id; "
+        + "END;"
+    );
+
+    // migrations[n] upgrades a database from version n to version n + 1.
+    private static final String[][] migrations = {
+        // 1: backup codes are deleted with their password, and looked up by passwordId.
+        // SQLite cannot add ON DELETE CASCADE to an existing table, so it is rebuilt,
+        // dropping the codes whose password was already deleted.
+        {
+            "CREATE TABLE backupCodesNew ("
+            + "id INTEGER NOT NULL PRIMARY KEY, "
+            + "passwordId INTEGER NOT NULL, "
+            + "code VARCHAR NOT NULL, "
+            + "isUsed INTEGER DEFAULT 0 CHECK (isUsed IN (0, 1)), "
+            + "FOREIGN KEY (passwordId) REFERENCES passwords(id) ON DELETE CASCADE"
+            + ");",
+
+            "INSERT INTO backupCodesNew (id, passwordId, code, isUsed) "
+            + "SELECT id, passwordId, code, isUsed FROM backupCodes "
+            + "WHERE passwordId IN (SELECT id FROM passwords);",
+
+            "DROP TABLE backupCodes;",
+
+            "ALTER TABLE backupCodesNew RENAME TO backupCodes;",
+
+            "CREATE INDEX backupCodesPasswordIdIndex ON backupCodes (passwordId);",
+
+            "UPDATE passwords SET hasBackupCodes = EXISTS (SELECT 1 FROM backupCodes WHERE passwordId = passwords.id);",
+        },
+
+        // 2: backup code counts kept by triggers, hasBackupCodes is derived from them.
+        // A NULL isUsed counts as unused, like in the backup codes dialog.
+        {
+            "ALTER TABLE passwords ADD COLUMN backupCodeCount INTEGER NOT NULL DEFAULT 0;",
+
+            "ALTER TABLE passwords ADD COLUMN unusedBackupCodeCount INTEGER NOT NULL DEFAULT 0;",
+
+            "UPDATE passwords SET "
+            + "backupCodeCount = (SELECT COUNT(*) FROM backupCodes WHERE passwordId = passwords.id), "
+            + "unusedBackupCodeCount = (SELECT COUNT(*) FROM backupCodes WHERE passwordId = passwords.id AND isUsed IS NOT 1);",
+
+            "UPDATE passwords SET hasBackupCodes = (backupCodeCount > 0);",
+
+            "CREATE TRIGGER backupCodesAfterInsert AFTER INSERT ON backupCodes BEGIN "
+            + "UPDATE passwords SET "
+            + "backupCodeCount = backupCodeCount + 1, "
+            + "unusedBackupCodeCount = unusedBackupCodeCount + (NEW.isUsed IS NOT 1), "
+            + "hasBackupCodes = 1 "
+            + "WHERE id = NEW.passwordId; "
+            + "END;",
+
+            "CREATE TRIGGER backupCodesAfterDelete AFTER DELETE ON backupCodes BEGIN "
+            + "UPDATE passwords SET "
+            + "backupCodeCount = backupCodeCount - 1, "
+            + "unusedBackupCodeCount = unusedBackupCodeCount - (OLD.isUsed IS NOT 1), "
+            + "hasBackupCodes = (backupCodeCount > 1) "
+            + "WHERE id = OLD.passwordId; "
+            + "END;",
+
+            // Handled as a delete from the old password and an insert into the new one.
+            "CREATE TRIGGER backupCodesAfterUpdate AFTER UPDATE OF passwordId, isUsed ON backupCodes BEGIN "
+            + "UPDATE passwords SET "
+            + "backupCodeCount = backupCodeCount - 1, "
+            + "unusedBackupCodeCount = unusedBackupCodeCount - (OLD.isUsed IS NOT 1), "
+            + "hasBackupCodes = (backupCodeCount > 1) "
+            + "WHERE id = OLD.passwordId; "
+            + "UPDATE passwords SET "
+            + "backupCodeCount = backupCodeCount + 1, "
+            + "unusedBackupCodeCount = unusedBackupCodeCount + (NEW.isUsed IS NOT 1), "
+            + "hasBackupCodes = 1 "
+            + "WHERE id = NEW.passwordId; "
+            + "END;",
+        },
+
+        // 3: keyset pagination of fetchPage(), the id is part of every index as the rowid.
+        {
+            "CREATE INDEX passwordsWebsiteIndex ON passwords (website COLLATE NOCASE);",
+
+            "CREATE INDEX passwordsUsernameIndex ON passwords (username COLLATE NOCASE);",
+        },
+
+        // 4: full-text search of search(), the rowid of passwordsSearch is the password id.
+        {
+            SEARCH_TABLE,
+
+            "INSERT INTO passwordsSearch (rowid, website, username, note) "
+            + "SELECT id, website, username, IFNULL(note, '') FROM passwords;",
+
+            "CREATE TRIGGER passwordsSearchAfterInsert AFTER INSERT ON passwords BEGIN "
+            + "INSERT INTO passwordsSearch (rowid, website, username, note) "
+            + "VALUES (NEW.id, NEW.website, NEW.username, IFNULL(NEW.note, '')); "
+            + "END;",
+
+            "CREATE TRIGGER passwordsSearchAfterUpdate AFTER UPDATE OF website, username, note ON passwords BEGIN "
+            + "UPDATE passwordsSearch SET website = NEW.website, username = NEW.username, note = IFNULL(NEW.note, '') "
+            + "WHERE rowid = NEW.id; "
+            + "END;",
+
+            SEARCH_AFTER_DELETE_TRIGGER,
+        },
+
+        // 5: the performance profile of the vault, see PasswordManagerProfile.read().
+        {
+            "CREATE TABLE settings ("
+            + "id INTEGER NOT NULL PRIMARY KEY CHECK (id = 1), "
+            + "journalMode VARCHAR NOT NULL, "
+            + "synchronous VARCHAR NOT NULL, "
+            + "cacheSize INTEGER NOT NULL, "
+            + "mmapSize INTEGER NOT NULL, "
+            + "tempStore VARCHAR NOT NULL"
+            + ");",
+        },
+    };
+
+    // Migrations that differ for SPLIT databases, keyed by the version they upgrade from.
+    // The SPLIT layout was added in version 3, older migrations only run on INLINE databases.
+    private static final Map<Integer, String[]> splitMigrations = Map.of(
+        3, new String[] {
+            SEARCH_TABLE,
+
+            "INSERT INTO passwordsSearch (rowid, website, username, note) "
+            + "SELECT passwords.id, website, username, IFNULL(note, '') "
+            + "FROM passwords JOIN secrets ON secrets.id = passwords.id;",
+
+            SPLIT_SEARCH_AFTER_INSERT_TRIGGER,
+            SPLIT_SEARCH_AFTER_UPDATE_TRIGGER,
+            SPLIT_SECRETS_SEARCH_AFTER_INSERT_TRIGGER,
+            SPLIT_SECRETS_SEARCH_AFTER_UPDATE_TRIGGER,
+            SEARCH_AFTER_DELETE_TRIGGER,
+        }
+    );
+
+    // INLINE: password, otp and note are columns of passwords.
+    // SPLIT: they are in secrets, so that listing passwords doesn't read (and decrypt) their pages.
+    // Opt-in, see PasswordManagerSQLite(Path, PasswordManagerKey, Layout).
+    public enum Layout {
+        INLINE,
+        SPLIT
+    }
+
+    private static final String[] splitSecretsStatements = {
+        // They read the note of passwords, which is dropped.
+        "DROP TRIGGER passwordsSearchAfterInsert;",
+
+        "DROP TRIGGER passwordsSearchAfterUpdate;",
+
+        "CREATE TABLE secrets ("
+        + "id INTEGER NOT NULL PRIMARY KEY, "
+        + "password VARCHAR NOT NULL, "
+        + "otp VARCHAR DEFAULT '', "
+        + "note VARCHAR DEFAULT '', "
+        + "FOREIGN KEY (id) REFERENCES passwords(id) ON DELETE CASCADE"
+        + ");",
+
+        "INSERT INTO secrets (id, password, otp, note) "
+        + "SELECT id, password, otp, note FROM passwords;",
+
+        // The list view flags, without reading secrets.
+        "ALTER TABLE passwords ADD COLUMN hasOTP INTEGER NOT NULL DEFAULT 0;",
+
+        "ALTER TABLE passwords ADD COLUMN hasNote INTEGER NOT NULL DEFAULT 0;",
+
+        "UPDATE passwords SET hasOTP = (IFNULL(otp, '') <> ''), hasNote = (IFNULL(note, '') <> '');",
+
+        "ALTER TABLE passwords DROP COLUMN password;",
+
+        "ALTER TABLE passwords DROP COLUMN otp;",
+
+        "ALTER TABLE passwords DROP COLUMN note;",
+
+        "CREATE TRIGGER secretsAfterInsert AFTER INSERT ON secrets BEGIN "
+        + "UPDATE passwords SET hasOTP = (IFNULL(NEW.otp, '') <> ''), hasNote = (IFNULL(NEW.note, '') <> '') "
+        + "WHERE id = NEW.id; "
+        + "END;",
+
+        "CREATE TRIGGER secretsAfterUpdate AFTER UPDATE OF otp, note ON secrets BEGIN "
+        + "UPDATE passwords SET hasOTP = (IFNULL(NEW.otp, '') <> ''), hasNote = (IFNULL(NEW.note, '') <> '') "
+        + "WHERE id = NEW.id; "
+        + "END;",
+
+        // The INLINE passwords table, read by fetchPasswords() and written by addPassword().
+        "CREATE VIEW passwordsWithSecrets AS "
+        + "SELECT passwords.id AS id, website, username, password, otp, hasBackupCodes, note "
+        + "FROM passwords JOIN secrets ON secrets.id = passwords.id;",
+
+        "CREATE TRIGGER passwordsWithSecretsInsert INSTEAD OF INSERT ON passwordsWithSecrets BEGIN "
+        + "INSERT INTO passwords (website, username) VALUES (NEW.website, NEW.username); "
+        + "INSERT INTO secrets (id, password, otp, note) "
+        + "VALUES (last_insert_rowid(), NEW.password, IFNULL(NEW.otp, ''), IFNULL(NEW.note, '')); "
+        + "END;",
+
+        SPLIT_SEARCH_AFTER_INSERT_TRIGGER,
+        SPLIT_SEARCH_AFTER_UPDATE_TRIGGER,
+        SPLIT_SECRETS_SEARCH_AFTER_INSERT_TRIGGER,
+        SPLIT_SECRETS_SEARCH_AFTER_UPDATE_TRIGGER,
+    };
+
+    public static int getVersion(Connection connection) throws SQLException {
+        try (
+            Statement statement = connection.createStatement();
+            ResultSet rs = statement.executeQuery("PRAGMA user_version;");
+        ) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    // Must be given a connection with foreign keys off (the default), tables are rebuilt
+    // and PRAGMA foreign_keys cannot be changed inside the upgrade transaction.
+    public static void upgrade(Connection connection) throws SQLException {
+        int version = getVersion(connection);
+
+        if (version > VERSION) {
+            throw new SQLException("database schema version " + version + " is newer than " + VERSION + ".");
+        }
+
+        if (version == VERSION) {
+            return;
+        }
+
+        boolean isSplit = getLayout(connection) == Layout.SPLIT;
+        List<String> statements = new ArrayList<>();
+
+        for (; version < VERSION; version++) {
+            String[] migration = migrations[version];
+
+            if (isSplit && splitMigrations.containsKey(version)) {
+                migration = splitMigrations.get(version);
+            }
+
+            statements.addAll(Arrays.asList(migration));
+        }
+
+        statements.add("PRAGMA user_version = " + VERSION + ";");
+
+        executeInTransaction(connection, statements);
+    }
+
+    public static Layout getLayout(Connection connection) throws SQLException {
+        try (
+            Statement statement = connection.createStatement();
+            ResultSet rs = statement.executeQuery("SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = 'secrets';");
+        ) {
+            return rs.next() ? Layout.SPLIT : Layout.INLINE;
+        }
+    }
+
+    // Moves an INLINE database to the SPLIT layout, with the same requirements as upgrade().
+    // The database is vacuumed afterwards so that the remaining passwords rows are packed.
+    public static void splitSecrets(Connection connection) throws SQLException {
+        if (getLayout(connection) == Layout.SPLIT) {
+            return;
+        }
+
+        executeInTransaction(connection, Arrays.asList(splitSecretsStatements));
+
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate("VACUUM;");
+        }
+    }
+
+    private static void executeInTransaction(Connection connection, List<String> statements) throws SQLException {
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+
+        try (Statement statement = connection.createStatement()) {
+            statement.setQueryTimeout(30);
+
+            for (String sql : statements) {
+                statement.executeUpdate(sql);
+            }
+
+            try (ResultSet rs = statement.executeQuery("PRAGMA foreign_key_check;")) {
+                if (rs.next()) {
+                    throw new SQLException("foreign key violation in table " + rs.getString("table") + ".");
+                }
+            }
+
+            connection.commit();
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package com.raphaeltannous;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.Objects;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * PasswordManagerSession
+ *
+ * Keeps an unlocked database open for the lifetime of a vault, so the key is
+ * derived once at unlock instead of on every read or write. Every connection is
+ * opened with the raw key, so reconnecting never runs the key derivation again.
+ *
+ * Reads go through a pool of read-only connections and writes through a single
+ * writer connection, see PasswordManagerConnectionPool.
+ */
+public class PasswordManagerSession implements AutoCloseable {
+    private final Path databasePath;
+    private final String databaseURL;
+
+    private PasswordManagerKey databaseKey;
+    private PasswordManagerConnectionPool pool;
+    private PasswordManagerProfile profile = PasswordManagerProfile.SAFE;
+
+    private boolean locked = false;
+    private boolean replacing = false; // see replaceDatabase().
+
+    public PasswordManagerSession(
+        Path databasePath,
+        PasswordManagerKey databaseKey
+    ) {
+        this.databasePath = databasePath.normalize();
+        this.databaseURL = "jdbc:sqlite:file:" + this.databasePath;
+        this.databaseKey = Objects.requireNonNull(databaseKey);
+        this.pool = new PasswordManagerConnectionPool(this::openPooledConnection);
+    }
+
+    public PooledConnection acquireReader() throws SQLException {
+        return getPool().acquireReader();
+    }
+
+    public PooledConnection acquireWriter() throws SQLException {
+        return getPool().acquireWriter();
+    }
+
+    // Without checking the lock, a write that failed to acquire the writer may ask.
+    public synchronized boolean isWriterHeldByCurrentThread() {
+        return pool.isWriterHeldByCurrentThread();
+    }
+
+    // Waits for the new pool while the database is replaced.
+    private synchronized PasswordManagerConnectionPool getPool() {
+        boolean isInterrupted = false;
+
+        while (replacing && !locked) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                isInterrupted = true;
+            }
+        }
+
+        // The replacement is short, the interrupt is left for the caller.
+        if (isInterrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (locked) {
+            throw new IllegalStateException("session is locked.");
+        }
+
+        return pool;
+    }
+
+    // Replaces the pool, connections currently in use are closed once released.
+    public void configurePool(int readConnections, Duration idleTimeout) {
+        PasswordManagerConnectionPool newPool = new PasswordManagerConnectionPool(
+            this::openPooledConnection,
+            readConnections,
+            idleTimeout
+        );
+
+        PasswordManagerConnectionPool oldPool;
+
+        synchronized (this) {
+            oldPool = getPool();
+            pool = newPool;
+        }
+
+        // Outside of the lock, closing waits for the writer which may be opening a connection.
+        oldPool.close();
+    }
+
+    public synchronized PasswordManagerProfile getProfile() {
+        return profile;
+    }
+
+    // Connections are reopened so that all of them use the new profile.
+    public void setProfile(PasswordManagerProfile profile) {
+        PasswordManagerConnectionPool currentPool;
+
+        synchronized (this) {
+            this.profile = Objects.requireNonNull(profile);
+            currentPool = getPool();
+        }
+
+        configurePool(currentPool.getReadConnections(), currentPool.getIdleTimeout());
+    }
+
+    public synchronized PasswordManagerConnectionPool.Statistics getPoolStatistics() {
+        return pool.getStatistics();
+    }
+
+    // A new connection for work that should not share the pooled ones (backups, integrity checks...).
+    // The caller is responsible for closing it.
+    public synchronized Connection openConnection() throws SQLException {
+        if (locked) {
+            throw new IllegalStateException("session is locked.");
+        }
+
+        return databaseKey.openConnection(databaseURL);
+    }
+
+    // Moves rekeyedPath, a copy of the database encrypted with rekeyedKey, over the database
+    // and destroys the previous key. The pool is closed first so that no connection is left
+    // open on the previous file (nor its WAL), the other threads wait for the new pool.
+    // The monitor is not held while the connections in use are waited for, their threads may
+    // need it to release them. The calling thread may hold the writer, it is closed but still
+    // has to be released. On failure the database file and the key are unchanged.
+    public void replaceDatabase(Path rekeyedPath, PasswordManagerKey rekeyedKey) throws SQLException, IOException {
+        PasswordManagerConnectionPool oldPool;
+
+        synchronized (this) {
+            oldPool = getPool();
+            replacing = true;
+        }
+
+        boolean isMoved = false;
+
+        try {
+            oldPool.closeAndWait();
+
+            Files.move(rekeyedPath, databasePath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            isMoved = true;
+
+            syncDirectory(databasePath.toAbsolutePath().getParent());
+        } finally {
+            PasswordManagerKey destroyedKey = null;
+
+            synchronized (this) {
+                if (isMoved) {
+                    destroyedKey = databaseKey;
+                    databaseKey = Objects.requireNonNull(rekeyedKey);
+                }
+
+                if (locked) {
+                    // lock() closed the previous pool and destroyed the previous key meanwhile.
+                    destroyedKey = isMoved ? databaseKey : null;
+                } else {
+                    pool = new PasswordManagerConnectionPool(
+                        this::openPooledConnection,
+                        oldPool.getReadConnections(),
+                        oldPool.getIdleTimeout()
+                    );
+                }
+
+                replacing = false;
+                notifyAll();
+            }
+
+            if (destroyedKey != null) {
+                destroyedKey.destroy();
+            }
+        }
+    }
+
+    // The rename is only durable once the directory holding it is synced. Directories cannot be
+    // opened on every platform (Windows), the rename is left to the file system there.
+    private static void syncDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Not supported.
+        }
+    }
+
+    private Connection openPooledConnection(boolean isWriter) throws SQLException {
+        Connection connection = openConnection();
+
+        try (Statement statement = connection.createStatement()) {
+            // Off by default in SQLite, deleting a password deletes its backup codes.
+            statement.execute("PRAGMA foreign_keys = ON;");
+
+            getProfile().apply(connection, isWriter);
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+
+        return connection;
+    }
+
+    public synchronized boolean isLocked() {
+        return locked;
+    }
+
+    // Closes the connections and zeroes the key, the session cannot be used afterwards.
+    public void lock() {
+        PasswordManagerConnectionPool lockedPool;
+        PasswordManagerKey lockedKey;
+
+        synchronized (this) {
+            if (locked) {
+                return;
+            }
+
+            locked = true;
+
+            lockedPool = pool;
+            lockedKey = databaseKey;
+        }
+
+        lockedPool.close();
+        lockedKey.destroy();
+    }
+
+    @Override
+    public void close() {
+        lock();
+    }
+}
@@ -0,0 +1,44 @@
+package com.raphaeltannous;
+
+import java.util.List;
+
+/**
+ * PasswordPage
+ *
+ * A page of fetchPage(), in sortColumn order. nextKey is given to fetchPage()
+ * to get the following page, it is null on the last page.
+ */
+public record PasswordPage(
+    List<PasswordEntry> entries,
+    Key nextKey
+) {
+    // Website and username are sorted case-insensitively, ties are sorted by id.
+    public enum SortColumn {
+        ID,
+        WEBSITE,
+        USERNAME
+    }
+
+    // Position after which the next page starts, value is null for SortColumn.ID.
+    public record Key(
+        SortColumn sortColumn,
+        String value,
+        int id
+    ) {
+        public static Key after(SortColumn sortColumn, PasswordEntry entry) {
+            return switch (sortColumn) {
+                case ID -> new Key(sortColumn, null, entry.id());
+                case WEBSITE -> new Key(sortColumn, entry.website(), entry.id());
+                case USERNAME -> new Key(sortColumn, entry.username(), entry.id());
+            };
+        }
+    }
+
+    public PasswordPage {
+        entries = List.copyOf(entries);
+    }
+
+    public boolean hasNext() {
+        return nextKey != null;
+    }
+}
@@ -0,0 +1,230 @@
+package com.raphaeltannous;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.swing.table.AbstractTableModel;
+
+/**
+ * PasswordsTableModel
+ *
+ * Rows of the passwords table, kept column by column in arrays so that the cells
+ * are read straight from them. rowOfId maps a password id to its row (-1 if it
+ * has none), so a changed entry is found and updated in place.
+ */
+public class PasswordsTableModel extends AbstractTableModel implements EntryTableModel {
+    public static final String PASSWORD_MASK = "\u2022\u2022\u2022\u2022\u2022\u2022\u2022\u2022";
+
+    static final String[] COLUMN_NAMES = {
+        "Website", "Username/Email", "Password", "OTP", "Backup Codes", "Note"
+    };
+
+    static final int WEBSITE_COLUMN = 0;
+    static final int USERNAME_COLUMN = 1;
+    private static final int PASSWORD_COLUMN = 2;
+    private static final int OTP_COLUMN = 3;
+    private static final int BACKUP_CODES_COLUMN = 4;
+    private static final int NOTE_COLUMN = 5;
+
+    private int rowCount = 0;
+
+    private int[] ids = new int[16];
+    private String[] websites = new String[16];
+    private String[] usernames = new String[16];
+    private boolean[] hasOTPs = new boolean[16];
+    private boolean[] hasNotes = new boolean[16];
+    private int[] backupCodeCounts = new int[16];
+    private int[] unusedBackupCodeCounts = new int[16];
+
+    // Indexed by id, the ids are small positive integers.
+    private int[] rowOfId = new int[0];
+
+    @Override
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMN_NAMES.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return COLUMN_NAMES[column];
+    }
+
+    @Override
+    public Class<?> getColumnClass(int column) {
+        return String.class;
+    }
+
+    @Override
+    public boolean isCellEditable(int row, int column) {
+        return false;
+    }
+
+    @Override
+    public Object getValueAt(int row, int column) {
+        return getCellValue(
+            column,
+            websites[row],
+            usernames[row],
+            hasOTPs[row],
+            hasNotes[row],
+            backupCodeCounts[row],
+            unusedBackupCodeCounts[row]
+        );
+    }
+
+    // Shared with LazyPasswordsTableModel.
+    static Object getCellValue(
+        int column,
+        String website,
+        String username,
+        boolean hasOTP,
+        boolean hasNote,
+        int backupCodeCount,
+        int unusedBackupCodeCount
+    ) {
+        return switch (column) {
+            case WEBSITE_COLUMN -> website;
+            case USERNAME_COLUMN -> username;
+            case PASSWORD_COLUMN -> PASSWORD_MASK;
+            case OTP_COLUMN -> hasOTP ? "Yes" : "No";
+            case BACKUP_CODES_COLUMN -> backupCodeCount > 0
+                ? unusedBackupCodeCount + " of " + backupCodeCount + " unused"
+                : "No";
+            case NOTE_COLUMN -> hasNote ? "Yes" : "No";
+            default -> throw new IndexOutOfBoundsException(column);
+        };
+    }
+
+    @Override
+    public int getIdAt(int row) {
+        if (row < 0 || row >= rowCount) {
+            throw new IndexOutOfBoundsException(row);
+        }
+
+        return ids[row];
+    }
+
+    @Override
+    public int getRowOf(int passwordId) {
+        if (passwordId < 0 || passwordId >= rowOfId.length) {
+            return -1;
+        }
+
+        return rowOfId[passwordId];
+    }
+
+    // Replaces every row.
+    public void setEntries(List<PasswordEntry> entries) {
+        int previousRowCount = rowCount;
+
+        Arrays.fill(rowOfId, -1);
+        rowCount = 0;
+
+        ensureCapacity(entries.size());
+
+        for (PasswordEntry entry : entries) {
+            setRow(rowCount++, entry);
+        }
+
+        if (rowCount < previousRowCount) {
+            Arrays.fill(websites, rowCount, previousRowCount, null);
+            Arrays.fill(usernames, rowCount, previousRowCount, null);
+        }
+
+        fireTableDataChanged();
+    }
+
+    // Updates the row of the entry in place, or appends one if it has none.
+    @Override
+    public void putEntry(PasswordEntry entry) {
+        int row = getRowOf(entry.id());
+
+        if (row != -1) {
+            setRow(row, entry);
+            fireTableRowsUpdated(row, row);
+
+            return;
+        }
+
+        ensureCapacity(rowCount + 1);
+
+        row = rowCount++;
+        setRow(row, entry);
+
+        fireTableRowsInserted(row, row);
+    }
+
+    @Override
+    public void removeEntry(int passwordId) {
+        int row = getRowOf(passwordId);
+
+        if (row == -1) {
+            return;
+        }
+
+        int movedRows = rowCount - row - 1;
+
+        System.arraycopy(ids, row + 1, ids, row, movedRows);
+        System.arraycopy(websites, row + 1, websites, row, movedRows);
+        System.arraycopy(usernames, row + 1, usernames, row, movedRows);
+        System.arraycopy(hasOTPs, row + 1, hasOTPs, row, movedRows);
+        System.arraycopy(hasNotes, row + 1, hasNotes, row, movedRows);
+        System.arraycopy(backupCodeCounts, row + 1, backupCodeCounts, row, movedRows);
+        System.arraycopy(unusedBackupCodeCounts, row + 1, unusedBackupCodeCounts, row, movedRows);
+
+        rowCount--;
+
+        websites[rowCount] = null;
+        usernames[rowCount] = null;
+
+        rowOfId[passwordId] = -1;
+
+        for (int i = row; i < rowCount; i++) {
+            rowOfId[ids[i]] = i;
+        }
+
+        fireTableRowsDeleted(row, row);
+    }
+
+    private void setRow(int row, PasswordEntry entry) {
+        int passwordId = entry.id();
+
+        if (passwordId >= rowOfId.length) {
+            int previousLength = rowOfId.length;
+
+            rowOfId = Arrays.copyOf(rowOfId, Math.max(passwordId + 1, previousLength * 2));
+            Arrays.fill(rowOfId, previousLength, rowOfId.length, -1);
+        }
+
+        ids[row] = passwordId;
+        websites[row] = entry.website();
+        usernames[row] = entry.username();
+        hasOTPs[row] = entry.hasOTP();
+        hasNotes[row] = entry.hasNote();
+        backupCodeCounts[row] = entry.backupCodeCount();
+        unusedBackupCodeCounts[row] = entry.unusedBackupCodeCount();
+
+        rowOfId[passwordId] = row;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= ids.length) {
+            return;
+        }
+
+        int newCapacity = Math.max(capacity, ids.length * 2);
+
+        ids = Arrays.copyOf(ids, newCapacity);
+        websites = Arrays.copyOf(websites, newCapacity);
+        usernames = Arrays.copyOf(usernames, newCapacity);
+        hasOTPs = Arrays.copyOf(hasOTPs, newCapacity);
+        hasNotes = Arrays.copyOf(hasNotes, newCapacity);
+        backupCodeCounts = Arrays.copyOf(backupCodeCounts, newCapacity);
+        unusedBackupCodeCounts = Arrays.copyOf(unusedBackupCodeCounts, newCapacity);
+    }
+}
@@ -0,0 +1,80 @@
+package com.raphaeltannous;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * PooledConnection
+ *
+ * A connection borrowed from PasswordManagerConnectionPool. Prepared statements
+ * come from the connection's PreparedStatementCache and stay open for the next
+ * borrower, other statements are closed when it is given back with close().
+ */
+public class PooledConnection implements AutoCloseable {
+    private final PasswordManagerConnectionPool pool;
+    private final PreparedStatementCache statementCache;
+    private final boolean isWriter;
+
+    private final List<Statement> statements = new ArrayList<>();
+
+    private boolean released = false;
+
+    PooledConnection(
+        PasswordManagerConnectionPool pool,
+        PreparedStatementCache statementCache,
+        boolean isWriter
+    ) {
+        this.pool = pool;
+        this.statementCache = statementCache;
+        this.isWriter = isWriter;
+    }
+
+    public Connection getConnection() {
+        return statementCache.getConnection();
+    }
+
+    PreparedStatementCache getStatementCache() {
+        return statementCache;
+    }
+
+    public boolean isWriter() {
+        return isWriter;
+    }
+
+    // Cached, must not be closed by the caller (but its ResultSets must be).
+    public PreparedStatement prepareStatement(String sql) throws SQLException {
+        return statementCache.prepareStatement(sql);
+    }
+
+    public Statement createStatement() throws SQLException {
+        Statement statement = getConnection().createStatement();
+        statements.add(statement);
+
+        return statement;
+    }
+
+    @Override
+    public void close() {
+        if (released) {
+            return;
+        }
+
+        released = true;
+
+        for (Statement statement : statements) {
+            try {
+                statement.close();
+            } catch (SQLException e) {
+                e.printStackTrace(System.err);
+            }
+        }
+
+        statements.clear();
+
+        pool.release(this);
+    }
+}
@@ -0,0 +1,98 @@
+package com.raphaeltannous;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * PreparedStatementCache
+ *
+ * Prepared statements of one pooled connection, keyed by their SQL. Each statement
+ * is prepared once and then handed out again with its parameters cleared.
+ */
+public class PreparedStatementCache implements AutoCloseable {
+    public static final int DEFAULT_MAX_STATEMENTS = 64;
+
+    private final Connection connection;
+
+    private final LongAdder hits;
+    private final LongAdder misses;
+
+    private final Map<String, PreparedStatement> statements;
+
+    PreparedStatementCache(
+        Connection connection,
+        int maxStatements,
+        LongAdder hits,
+        LongAdder misses
+    ) {
+        this.connection = connection;
+        this.hits = hits;
+        this.misses = misses;
+
+        // Least recently used statements are closed once the cache is full.
+        this.statements = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() <= maxStatements) {
+                    return false;
+                }
+
+                closeQuietly(eldest.getValue());
+
+                return true;
+            }
+        };
+    }
+
+    public Connection getConnection() {
+        return connection;
+    }
+
+    // The returned statement belongs to the cache and must not be closed by the caller,
+    // its ResultSets must be though, otherwise the connection keeps its read transaction.
+    public PreparedStatement prepareStatement(String sql) throws SQLException {
+        PreparedStatement statement = statements.get(sql);
+
+        if (statement != null && !statement.isClosed()) {
+            hits.increment();
+
+            statement.clearParameters();
+
+            return statement;
+        }
+
+        misses.increment();
+
+        statement = connection.prepareStatement(sql);
+        statements.put(sql, statement);
+
+        return statement;
+    }
+
+    private static void closeQuietly(PreparedStatement statement) {
+        try {
+            statement.close();
+        } catch (SQLException e) {
+            e.printStackTrace(System.err);
+        }
+    }
+
+    @Override
+    public void close() {
+        for (PreparedStatement statement : statements.values()) {
+            closeQuietly(statement);
+        }
+
+        statements.clear();
+
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            e.printStackTrace(System.err);
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.raphaeltannous;
+
+/**
+ * RekeyListener
+ *
+ * Follows PasswordManagerInterface.rekey(), which copies the rows to a new database
+ * file in chunks. Called after every chunk, a cancelled rekey leaves the database
+ * as it was.
+ */
+@FunctionalInterface
+public interface RekeyListener {
+    void onProgress(long rowsCopied, long totalRows);
+
+    // Checked before every chunk.
+    public default boolean isCancelled() {
+        return false;
+    }
+}
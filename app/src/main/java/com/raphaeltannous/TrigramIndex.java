@@ -0,0 +1,174 @@
+package com.raphaeltannous;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * TrigramIndex
+ *
+ * In-memory index of the websites and usernames, used to filter the passwords
+ * table as the user types without querying the database. Each trigram (3 lower
+ * case characters) of a field maps to the sorted ids of the passwords containing it.
+ */
+public class TrigramIndex {
+    private record Fields(String website, String username) {}
+
+    // Sorted ids, only the first size ones are used.
+    private static class Postings {
+        int[] ids = new int[4];
+        int size = 0;
+
+        void add(int id) {
+            int index = Arrays.binarySearch(ids, 0, size, id);
+
+            if (index >= 0) {
+                return;
+            }
+
+            index = -index - 1;
+
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+
+            System.arraycopy(ids, index, ids, index + 1, size - index);
+            ids[index] = id;
+            size++;
+        }
+
+        void remove(int id) {
+            int index = Arrays.binarySearch(ids, 0, size, id);
+
+            if (index < 0) {
+                return;
+            }
+
+            System.arraycopy(ids, index + 1, ids, index, size - index - 1);
+            size--;
+        }
+    }
+
+    private final Map<Long, Postings> postings = new HashMap<>();
+    private final Map<Integer, Fields> fields = new HashMap<>();
+
+    public synchronized int size() {
+        return fields.size();
+    }
+
+    // A null website or username keeps the indexed one.
+    public synchronized void put(int id, String website, String username) {
+        Fields previous = fields.get(id);
+
+        if (previous != null) {
+            website = website == null ? previous.website() : website;
+            username = username == null ? previous.username() : username;
+
+            remove(id);
+        }
+
+        Fields current = new Fields(normalize(website), normalize(username));
+        fields.put(id, current);
+
+        addTrigrams(id, current.website());
+        addTrigrams(id, current.username());
+    }
+
+    public synchronized void remove(int id) {
+        Fields previous = fields.remove(id);
+
+        if (previous == null) {
+            return;
+        }
+
+        removeTrigrams(id, previous.website());
+        removeTrigrams(id, previous.username());
+    }
+
+    public synchronized void clear() {
+        postings.clear();
+        fields.clear();
+    }
+
+    // Sorted ids of the passwords whose website or username contains query, ignoring case.
+    public synchronized int[] search(String query) {
+        String normalizedQuery = normalize(query);
+
+        // Too short to have a trigram, the fields are checked one by one.
+        if (normalizedQuery.length() < 3) {
+            return fields.keySet().stream()
+                .filter(id -> matches(id, normalizedQuery))
+                .mapToInt(Integer::intValue)
+                .sorted()
+                .toArray();
+        }
+
+        // The rarest trigram gives the candidates, the others narrow them down.
+        Postings rarest = null;
+
+        for (int i = 0; i + 3 <= normalizedQuery.length(); i++) {
+            Postings trigramPostings = postings.get(trigram(normalizedQuery, i));
+
+            if (trigramPostings == null) {
+                return new int[0];
+            }
+
+            if (rarest == null || trigramPostings.size < rarest.size) {
+                rarest = trigramPostings;
+            }
+        }
+
+        int[] result = new int[rarest.size];
+        int resultSize = 0;
+
+        // Having all the trigrams doesn't mean they are next to each other.
+        for (int i = 0; i < rarest.size; i++) {
+            int id = rarest.ids[i];
+
+            if (matches(id, normalizedQuery)) {
+                result[resultSize++] = id;
+            }
+        }
+
+        return Arrays.copyOf(result, resultSize);
+    }
+
+    private boolean matches(int id, String normalizedQuery) {
+        Fields indexed = fields.get(id);
+
+        return indexed.website().contains(normalizedQuery) || indexed.username().contains(normalizedQuery);
+    }
+
+    private void addTrigrams(int id, String field) {
+        for (int i = 0; i + 3 <= field.length(); i++) {
+            postings.computeIfAbsent(trigram(field, i), trigram -> new Postings()).add(id);
+        }
+    }
+
+    private void removeTrigrams(int id, String field) {
+        for (int i = 0; i + 3 <= field.length(); i++) {
+            long trigram = trigram(field, i);
+            Postings trigramPostings = postings.get(trigram);
+
+            if (trigramPostings == null) {
+                continue;
+            }
+
+            trigramPostings.remove(id);
+
+            if (trigramPostings.size == 0) {
+                postings.remove(trigram);
+            }
+        }
+    }
+
+    // The 3 chars packed in a long.
+    private static long trigram(String field, int start) {
+        return ((long) field.charAt(start) << 32) | ((long) field.charAt(start + 1) << 16) | field.charAt(start + 2);
+    }
+
+    private static String normalize(String field) {
+        return field == null ? "" : field.toLowerCase(Locale.ROOT);
+    }
+}
@@ -1,6 +1,11 @@
 package com.raphaeltannous;
 
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.sqlite.SQLiteConfig;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -8,12 +13,41 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Stream;
 
 class PasswordManagerSQLiteTest {
 
+    @TempDir
+    Path directory;
+
+    private Path databasePath;
+    private PasswordManagerSQLite db;
+
+    @BeforeEach
+    void openDatabase() {
+        databasePath = directory.resolve("passwords.epm");
+        db = new PasswordManagerSQLite(databasePath, "123");
+    }
+
+    // Closing twice does nothing, the tests that reopen the database close it first.
+    @AfterEach
+    void closeDatabase() {
+        db.close();
+    }
+
     private void printArray(String[]... arrays) {
         for (String[] array : arrays) {
             System.out.print("|");
@@ -185,6 +219,8 @@ class PasswordManagerSQLiteTest {
 
         boolean backupCodesResult = preFetchBackupCodesStatus && postFetchBackupCodesStatus;
 
+        db.close();
+
         assertTrue(
             isListEqualList(expectedFetchedPasswords, fetchedPasswords) &&
             otpResult &&
@@ -192,4 +228,775 @@ class PasswordManagerSQLiteTest {
             backupCodesResult
         );
     }
+
+    @Test
+    void rawKeyTest() throws IOException {
+        db.addPassword("https://youtube.com/", "tester", "a0e564984bca24c5");
+        db.close();
+
+        PasswordManagerKey databaseKey = PasswordManagerKey.derive(databasePath, "123");
+
+        assertTrue(PasswordManagerInterface.isFileADB(databasePath, databaseKey));
+
+        db = new PasswordManagerSQLite(databasePath, databaseKey);
+        String password = db.fetchPassword(1);
+        db.close();
+
+        assertEquals("a0e564984bca24c5", password);
+        assertTrue(databaseKey.isDestroyed());
+
+        PasswordManagerKey wrongDatabaseKey = PasswordManagerKey.derive(databasePath, "1234");
+
+        assertFalse(PasswordManagerInterface.isFileADB(databasePath, wrongDatabaseKey));
+    }
+
+    @Test
+    void connectionPoolTest() throws InterruptedException {
+        db.configurePool(2, Duration.ofMinutes(1));
+
+        db.addPassword("https://youtube.com/", "tester", "a0e564984bca24c5");
+
+        List<Thread> readers = new ArrayList<>();
+        List<String> fetchedWebsites = Collections.synchronizedList(new ArrayList<>());
+
+        for (int i = 0; i < 8; i++) {
+            Thread reader = new Thread(() -> fetchedWebsites.add(db.fetchWebsite(1)));
+            readers.add(reader);
+            reader.start();
+        }
+
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        PasswordManagerConnectionPool.Statistics statistics = db.getPoolStatistics();
+        db.close();
+
+        assertEquals(8, fetchedWebsites.size());
+        assertTrue(fetchedWebsites.stream().allMatch("https://youtube.com/"::equals));
+        assertTrue(statistics.readConnectionsOpen() <= 2);
+        assertEquals(0, statistics.readConnectionsInUse());
+        assertTrue(statistics.writeAcquires() >= 1);
+
+        // Every connection prepares each statement once.
+        assertTrue(statistics.statementCacheMisses() <= 5);
+        assertTrue(statistics.statementCacheHits() > 0);
+    }
+
+    @Test
+    void batchTest() {
+        List<NewPasswordEntry> entries = new ArrayList<>();
+
+        for (int i = 0; i < 1000; i++) {
+            entries.add(new NewPasswordEntry("https://site" + i + ".com/", "tester", "password" + i));
+        }
+
+        List<Long> progress = new ArrayList<>();
+
+        BatchWriter.Result result = db.addPasswords(entries, 300, (rowsWritten, elapsedNanos) -> progress.add(rowsWritten));
+
+        assertTrue(result.committed());
+        assertEquals(1000, result.rowsWritten());
+        assertEquals(List.of(300L, 600L, 900L, 1000L), progress);
+        assertEquals(1000, db.getPasswordsCount());
+
+        // A failing batch writes nothing.
+        assertThrows(IllegalArgumentException.class, () -> db.batch(writer -> {
+            writer.deletePassword(1);
+            writer.modifyWebsite(2, "");
+        }));
+
+        assertEquals(1000, db.getPasswordsCount());
+        assertEquals("https://site0.com/", db.fetchWebsite(1));
+
+        // A missing id fails the batch like it fails the other methods.
+        assertFalse(db.batch(writer -> {
+            writer.deletePassword(1);
+            writer.modifyNote(1001, "note");
+        }).committed());
+
+        assertFalse(db.batch(writer -> writer.addBackupCode(1001, "7ac5b2e1")).committed());
+
+        assertEquals(1000, db.getPasswordsCount());
+
+        // Writes made directly or by a nested batch during a batch keep their order,
+        // and each batch counts its own rows.
+        List<Long> nestedRowsWritten = new ArrayList<>();
+
+        BatchWriter.Result mixedResult = db.batch(writer -> {
+            writer.modifyWebsite(1, "https://a.com/");
+            db.modifyWebsite(1, "https://b.com/");
+            writer.modifyWebsite(2, "https://c.com/");
+            nestedRowsWritten.add(db.batch(nestedWriter -> nestedWriter.modifyWebsite(2, "https://d.com/")).rowsWritten());
+            writer.modifyWebsite(3, "https://e.com/");
+        });
+
+        assertTrue(mixedResult.committed());
+        assertEquals(3, mixedResult.rowsWritten());
+        assertEquals(List.of(1L), nestedRowsWritten);
+        assertEquals("https://b.com/", db.fetchWebsite(1));
+        assertEquals("https://d.com/", db.fetchWebsite(2));
+        assertEquals("https://e.com/", db.fetchWebsite(3));
+    }
+
+    @Test
+    void updateEntryTest() {
+        db.addPassword("https://youtube.com/", "tester", "a0e564984bca24c5");
+
+        db.updateEntry(1, new EntryPatch().password("61d17dc939607d18").note("youtube note"));
+
+        assertArrayEquals(
+            new String[] {"1", "https://youtube.com/", "tester", "61d17dc939607d18", "", "0", "youtube note"},
+            db.fetchPasswordData(1)
+        );
+
+        assertThrows(IllegalArgumentException.class, () -> db.updateEntry(2, new EntryPatch().website("https://music.apple.com/")));
+    }
+
+    @Test
+    void missingRowsTest() {
+        db.addPassword("https://youtube.com/", "tester", "a0e564984bca24c5");
+
+        assertTrue(db.fetchBackupCodes(1).isEmpty());
+
+        assertThrows(IllegalArgumentException.class, () -> db.fetchPassword(2));
+        assertThrows(IllegalArgumentException.class, () -> db.fetchBackupCodes(2));
+        assertThrows(IllegalArgumentException.class, () -> db.modifyNote(2, "note"));
+        assertThrows(IllegalArgumentException.class, () -> db.deletePassword(2));
+        assertThrows(IllegalArgumentException.class, () -> db.addBackupCode(2, "5774d4761370"));
+        assertThrows(IllegalArgumentException.class, () -> db.removeBackupCode(1));
+    }
+
+    @Test
+    void performanceProfileTest() {
+        assertEquals(PasswordManagerProfile.SAFE, db.getPerformanceProfile());
+
+        db.addPassword("https://youtube.com/", "tester", "a0e564984bca24c5");
+
+        db.setPerformanceProfile(PasswordManagerProfile.FAST);
+        db.addPassword("https://github.com/", "tester", "f1f4e8ad1c4e0c33");
+
+        assertEquals(PasswordManagerProfile.FAST, db.getPerformanceProfile());
+        assertEquals(2, db.getPasswordsCount());
+        assertEquals("a0e564984bca24c5", db.fetchPassword(1));
+
+        db.close();
+
+        // The vault is still readable with its password after using the write-ahead log,
+        // and keeps its profile.
+        PasswordManagerSQLite reopened = new PasswordManagerSQLite(databasePath, "123");
+        assertEquals(2, reopened.getPasswordsCount());
+        assertEquals(PasswordManagerProfile.FAST, reopened.getPerformanceProfile());
+        reopened.close();
+
+        assertThrows(IllegalArgumentException.class, () -> new PasswordManagerProfile("MEMORY; DROP TABLE passwords", "FULL", -2000, 0, "MEMORY"));
+    }
+
+    @Test
+    void foreignKeysTest() {
+        db.addPassword("https://youtube.com/", "tester", "a0e564984bca24c5");
+        db.addPassword("https://github.com/", "tester", "f1f4e8ad1c4e0c33");
+        db.addBackupCode(1, "5774d4761370");
+        db.addBackupCode(2, "d0b6c6e5d6c1");
+
+        db.deletePassword(1);
+
+        // The backup code of the deleted password is gone with it.
+        assertThrows(IllegalArgumentException.class, () -> db.removeBackupCode(1));
+        assertEquals(1, db.fetchBackupCodes(2).size());
+    }
+
+    @Test
+    void backupCodeCountsTest() {
+        db.addPassword("https://youtube.com/", "tester", "a0e564984bca24c5");
+        db.addBackupCode(1, "5774d4761370");
+        db.addBackupCode(1, "6e56a0a66191");
+        db.addBackupCode(1, "d0b6c6e5d6c1");
+        db.updateBackupCodeStatus(2, 1);
+
+        PasswordEntry entry = db.fetchEntry(1);
+
+        assertEquals(3, entry.backupCodeCount());
+        assertEquals(2, entry.unusedBackupCodeCount());
+
+        db.removeBackupCode(1);
+        db.removeBackupCode(2);
+        db.removeBackupCode(3);
+
+        // hasBackupCodes follows the counts without calling updateHasBackupCodeStatus().
+        assertEquals("0", db.fetchPasswordData(1)[5]);
+        assertEquals(0, db.fetchEntry(1).backupCodeCount());
+    }
+
+    @Test
+    void entriesTest() {
+        db.addPassword("https://youtube.com/", "tester", "a0e564984bca24c5");
+        db.addPassword("https://github.com/", "tester", "f1f4e8ad1c4e0c33");
+        db.modifyOTP(2, "86a1809af1db");
+        db.addBackupCode(2, "5774d4761370");
+
+        List<PasswordEntry> entries = db.fetchEntries();
+
+        assertEquals(2, entries.size());
+
+        PasswordEntry entry = entries.get(1);
+
+        assertEquals(2, entry.id());
+        assertEquals("https://github.com/", entry.website());
+        assertTrue(entry.hasOTP());
+        assertFalse(entry.hasNote());
+        assertTrue(entry.hasBackupCodes());
+        assertEquals(1, entry.unusedBackupCodeCount());
+
+        assertEquals("f1f4e8ad1c4e0c33", entry.fetchPassword());
+        assertEquals("86a1809af1db", entry.fetchOTP());
+        assertEquals("", entry.fetchNote());
+
+        assertEquals(entry, db.fetchEntry(2));
+        assertFalse(entries.get(0).hasOTP());
+        assertThrows(IllegalArgumentException.class, () -> db.fetchEntry(3));
+    }
+
+    @Test
+    void streamTest() {
+        List<NewPasswordEntry> entries = new ArrayList<>();
+
+        for (int i = 0; i < 1000; i++) {
+            entries.add(new NewPasswordEntry("https://example.com/" + i, "tester", "password" + i));
+        }
+
+        db.addPasswords(entries);
+
+        try (Stream<PasswordEntry> stream = db.streamEntries(50)) {
+            assertEquals(1000, stream.count());
+        }
+
+        try (Stream<String[]> stream = db.streamPasswords(50)) {
+            assertEquals("password999", stream.skip(999).findFirst().orElseThrow()[3]);
+        }
+
+        // Secrets can be fetched while the stream is open.
+        try (Stream<PasswordEntry> stream = db.streamEntries()) {
+            assertEquals("password0", stream.findFirst().orElseThrow().fetchPassword());
+        }
+
+        assertEquals(0, db.getPoolStatistics().readConnectionsInUse());
+    }
+
+    @Test
+    void pageTest() {
+        List<NewPasswordEntry> entries = new ArrayList<>();
+
+        // Duplicated websites with different cases, ordered by id within a website.
+        for (int i = 0; i < 25; i++) {
+            String website = (i % 2 == 0 ? "https://Site" : "https://site") + (i % 10) + ".com/";
+            entries.add(new NewPasswordEntry(website, "tester" + i, "password" + i));
+        }
+
+        db.addPasswords(entries);
+
+        List<Integer> expectedIds = new ArrayList<>();
+
+        for (int site = 0; site < 10; site++) {
+            for (int id = site + 1; id <= 25; id += 10) {
+                expectedIds.add(id);
+            }
+        }
+
+        List<Integer> ids = new ArrayList<>();
+        List<Integer> pageSizes = new ArrayList<>();
+        PasswordPage.Key key = null;
+
+        do {
+            PasswordPage page = db.fetchPage(key, 10, PasswordPage.SortColumn.WEBSITE);
+
+            page.entries().forEach(entry -> ids.add(entry.id()));
+            pageSizes.add(page.entries().size());
+
+            key = page.nextKey();
+        } while (key != null);
+
+        assertEquals(expectedIds, ids);
+        assertEquals(List.of(10, 10, 5), pageSizes);
+
+        PasswordPage firstPage = db.fetchPage(null, 20, PasswordPage.SortColumn.ID);
+        PasswordPage lastPage = db.fetchPage(firstPage.nextKey(), 20, PasswordPage.SortColumn.ID);
+
+        assertEquals(21, lastPage.entries().get(0).id());
+        assertFalse(lastPage.hasNext());
+
+        assertThrows(IllegalArgumentException.class, () -> db.fetchPage(firstPage.nextKey(), 20, PasswordPage.SortColumn.USERNAME));
+    }
+
+    @Test
+    void splitSecretsTest() {
+        db.addPassword("https://youtube.com/", "tester", "a0e564984bca24c5");
+        db.addPassword("https://github.com/", "tester", "f1f4e8ad1c4e0c33");
+        db.modifyOTP(1, "86a1809af1db");
+        db.modifyNote(2, "recovery email: tester@example.com");
+        db.addBackupCode(2, "5774d4761370");
+
+        List<String[]> inlinePasswords = db.fetchPasswords();
+        List<PasswordEntry> inlineEntries = db.fetchEntries();
+
+        assertEquals(PasswordManagerSchema.Layout.INLINE, db.getLayout());
+        db.close();
+
+        // Migrated in place, then kept on the next opens.
+        PasswordManagerSQLite migratedDb = new PasswordManagerSQLite(databasePath, "123", PasswordManagerSchema.Layout.SPLIT);
+        assertEquals(PasswordManagerSchema.Layout.SPLIT, migratedDb.getLayout());
+        migratedDb.close();
+
+        PasswordManagerSQLite splitDb = new PasswordManagerSQLite(databasePath, "123");
+        assertEquals(PasswordManagerSchema.Layout.SPLIT, splitDb.getLayout());
+
+        assertTrue(isListEqualList(inlinePasswords, splitDb.fetchPasswords()));
+        assertEquals(inlineEntries, splitDb.fetchEntries());
+
+        splitDb.addPassword("https://www.instagram.com/", "tester", "67157420020d");
+        splitDb.updateEntry(3, new EntryPatch().username("testerWithStyle").otp("0b1f0f3b7a1c"));
+
+        PasswordEntry entry = splitDb.fetchEntry(3);
+
+        assertEquals("testerWithStyle", entry.username());
+        assertTrue(entry.hasOTP());
+        assertFalse(entry.hasNote());
+        assertEquals("0b1f0f3b7a1c", entry.fetchOTP());
+        assertEquals("67157420020d", splitDb.fetchPassword(3));
+
+        splitDb.deletePassword(2);
+
+        assertThrows(IllegalArgumentException.class, () -> splitDb.fetchNote(2));
+        assertThrows(IllegalArgumentException.class, () -> splitDb.modifyPassword(2, "f1f4e8ad1c4e0c33"));
+        assertEquals(2, splitDb.getPasswordsCount());
+
+        splitDb.close();
+
+        assertThrows(IllegalArgumentException.class, () -> new PasswordManagerSQLite(databasePath, "123", PasswordManagerSchema.Layout.INLINE));
+    }
+
+    // Pages of the passwords table read by a full list scan, with secrets inline and split.
+    @Test
+    void splitSecretsPagesTest() throws IOException, SQLException {
+        Path splitPath = createSplitCopy();
+
+        assertTrue(countTablePages(splitPath, "passwords") * 4 < countTablePages(databasePath, "passwords"));
+    }
+
+    // Run with gradle benchmark, gradle test leaves it out.
+    @Test
+    @Tag("benchmark")
+    void splitSecretsBenchmark() throws IOException {
+        Path splitPath = createSplitCopy();
+
+        long inlineNanos = timeListScans(databasePath);
+        long splitNanos = timeListScans(splitPath);
+
+        System.out.println("10 list scans: inline " + inlineNanos / 1_000_000 + " ms, split " + splitNanos / 1_000_000 + " ms");
+    }
+
+    // Fills the database with 2000 passwords and returns a copy migrated to the split layout.
+    private Path createSplitCopy() throws IOException {
+        Path splitPath = directory.resolve("split.epm");
+
+        List<NewPasswordEntry> entries = new ArrayList<>();
+        String note = "note ".repeat(80);
+
+        for (int i = 0; i < 2000; i++) {
+            entries.add(new NewPasswordEntry("https://site" + i + ".com/", "tester" + i, "password" + i, "JBSWY3DPEHPK3PXP", note));
+        }
+
+        db.addPasswords(entries);
+        db.close();
+
+        Files.copy(databasePath, splitPath);
+        new PasswordManagerSQLite(splitPath, "123", PasswordManagerSchema.Layout.SPLIT).close();
+
+        return splitPath;
+    }
+
+    private long countTablePages(Path databasePath, String table) throws IOException, SQLException {
+        PasswordManagerKey key = PasswordManagerKey.derive(databasePath, "123");
+
+        try (
+            Connection connection = key.openConnection("jdbc:sqlite:file:" + databasePath);
+            PreparedStatement statement = connection.prepareStatement("SELECT COUNT(*) FROM dbstat WHERE name = ?;");
+        ) {
+            statement.setString(1, table);
+
+            try (ResultSet rs = statement.executeQuery()) {
+                rs.next();
+                return rs.getLong(1);
+            }
+        } finally {
+            key.destroy();
+        }
+    }
+
+    private long timeListScans(Path databasePath) {
+        PasswordManagerSQLite db = new PasswordManagerSQLite(databasePath, "123");
+
+        // Warm up the statement cache and the page cache first.
+        db.fetchEntries();
+
+        long start = System.nanoTime();
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals(2000, db.fetchEntries().size());
+        }
+
+        long elapsed = System.nanoTime() - start;
+
+        db.close();
+
+        return elapsed;
+    }
+
+    @Test
+    void searchTest() {
+        db.addPassword("https://github.com/", "tester", "f1f4e8ad1c4e0c33");
+        db.addPassword("https://example.com/", "gitfan", "a0e564984bca24c5");
+        db.addPassword("https://youtube.com/", "tester", "cf0fbe3142af64fc");
+        db.modifyNote(3, "shared with the git club");
+
+        // Website before username before note.
+        assertEquals(List.of(1, 2, 3), db.search("git", 10));
+        assertEquals(List.of(1), db.search("GitHub.com", 10));
+        assertEquals(List.of(1, 3), db.search("test", 10));
+        assertEquals(List.of(3), db.search("tes club", 10));
+        assertEquals(List.of(1), db.search("git", 1));
+        assertEquals(List.of(), db.search("  ", 10));
+        assertEquals(List.of(), db.search("\"OR NEAR(*", 10));
+
+        db.modifyWebsite(1, "https://codeberg.org/");
+        db.deletePassword(2);
+
+        assertEquals(List.of(3), db.search("git", 10));
+        assertEquals(List.of(1), db.search("codeb", 10));
+    }
+
+    @Test
+    void filterTest() {
+        assertEquals(1, db.addPassword("https://github.com/", "tester", "f1f4e8ad1c4e0c33"));
+        assertEquals(2, db.addPassword("https://GitLab.com/", "other", "a0e564984bca24c5"));
+
+        assertArrayEquals(new int[] {1, 2}, db.filter("git"));
+        assertArrayEquals(new int[] {2}, db.filter("gitl"));
+        assertArrayEquals(new int[] {1}, db.filter("TEST"));
+        assertArrayEquals(new int[] {1, 2}, db.filter("h"));
+        assertArrayEquals(new int[] {}, db.filter("hubgit"));
+
+        // Kept up to date once built.
+        assertEquals(3, db.addPassword("https://youtube.com/", "gitfan", "cf0fbe3142af64fc"));
+        db.modifyWebsite(1, "https://codeberg.org/");
+        db.updateEntry(2, new EntryPatch().username("gitter"));
+        db.deletePassword(3);
+
+        assertArrayEquals(new int[] {2}, db.filter("git"));
+        assertArrayEquals(new int[] {1}, db.filter("codeberg"));
+
+        db.addPasswords(List.of(new NewPasswordEntry("https://gitea.io/", "tester", "67157420020d")));
+
+        assertArrayEquals(new int[] {2, 3}, db.filter("git"));
+    }
+
+    @Test
+    void entryCacheTest() {
+        assertEquals(1, db.addPassword("https://github.com/", "tester", "f1f4e8ad1c4e0c33"));
+
+        assertEquals("f1f4e8ad1c4e0c33", db.fetchPassword(1));
+        assertEquals("f1f4e8ad1c4e0c33", db.fetchPassword(1));
+        assertEquals(1, db.getCacheStatistics().hits());
+        assertEquals(1, db.getCacheStatistics().misses());
+
+        // Every write invalidates what it changed.
+        db.modifyPassword(1, "a0e564984bca24c5");
+        assertEquals("a0e564984bca24c5", db.fetchPassword(1));
+
+        assertEquals("", db.fetchPasswordData(1)[6]);
+        db.updateEntry(1, new EntryPatch().note("recovery email"));
+        db.addBackupCode(1, "7ac5b2e1");
+        assertArrayEquals(
+            new String[] {"1", "https://github.com/", "tester", "a0e564984bca24c5", "", "1", "recovery email"},
+            db.fetchPasswordData(1)
+        );
+
+        db.removeBackupCode(1);
+        assertEquals("0", db.fetchPasswordData(1)[5]);
+
+        // Without a secret ttl only the other fields are cached.
+        db.configureCache(EntryCache.DEFAULT_MAX_CHARS, Duration.ZERO);
+
+        db.fetchPassword(1);
+        db.fetchPassword(1);
+        db.fetchWebsite(1);
+        db.fetchWebsite(1);
+        assertEquals(1, db.getCacheStatistics().hits());
+        assertEquals(0.25, db.getCacheStatistics().hitRatio());
+
+        db.deletePassword(1);
+        assertThrows(IllegalArgumentException.class, () -> db.fetchWebsite(1));
+    }
+
+    @Test
+    void asyncTest() {
+        AsyncPasswordManager asyncDb = new AsyncPasswordManager(db, Runnable::run);
+
+        // Writes run in order, reads after the writes submitted before them.
+        List<CompletableFuture<Integer>> ids = new ArrayList<>();
+
+        for (int i = 0; i < 20; i++) {
+            ids.add(asyncDb.addPassword("https://example" + i + ".com/", "tester", "f1f4e8ad1c4e0c33"));
+        }
+
+        asyncDb.modifyOTP(1, "JBSWY3DPEHPK3PXP");
+        CompletableFuture<String> otp = asyncDb.fetchOTP(1);
+        asyncDb.deletePassword(20);
+        CompletableFuture<Integer> count = asyncDb.getPasswordsCount();
+
+        for (int i = 0; i < 20; i++) {
+            assertEquals(i + 1, (int) ids.get(i).join());
+        }
+
+        assertEquals("JBSWY3DPEHPK3PXP", otp.join());
+        assertEquals(19, (int) count.join());
+
+        // Failures are passed to the future, the lane keeps going.
+        CompletionException failure = assertThrows(CompletionException.class, () -> asyncDb.deletePassword(20).join());
+        assertTrue(failure.getCause() instanceof IllegalArgumentException);
+        assertEquals("tester", asyncDb.fetchUsername(19).join());
+
+        asyncDb.closeAsync().join();
+        assertThrows(IllegalStateException.class, () -> asyncDb.fetchEntries());
+    }
+
+    @Test
+    void changeEventsTest() {
+        List<PasswordManagerEvent> events = new ArrayList<>();
+        db.addChangeListener(events::add);
+
+        // The events carry the row as it is right after each write.
+        List<PasswordEntry> entries = new ArrayList<>();
+
+        db.addPassword("https://github.com/", "tester", "f1f4e8ad1c4e0c33");
+        entries.add(db.fetchEntry(1));
+        db.modifyWebsite(1, "https://gitlab.com/");
+        entries.add(db.fetchEntry(1));
+        db.updateEntry(1, new EntryPatch().username("other").note("recovery email"));
+        entries.add(db.fetchEntry(1));
+        db.addBackupCode(1, "7ac5b2e1");
+        entries.add(db.fetchEntry(1));
+        db.updateBackupCodeStatus(1, 1);
+        entries.add(db.fetchEntry(1));
+        db.removeBackupCode(1);
+        entries.add(db.fetchEntry(1));
+        db.deletePassword(1);
+        db.addPasswords(List.of(new NewPasswordEntry("https://gitea.io/", "tester", "67157420020d")));
+
+        assertEquals(1, entries.get(3).unusedBackupCodeCount());
+        assertEquals(0, entries.get(4).unusedBackupCodeCount());
+
+        assertEquals(
+            List.of(
+                new PasswordManagerEvent.EntryAdded(1, entries.get(0)),
+                new PasswordManagerEvent.EntryUpdated(1, Set.of("website"), entries.get(1)),
+                new PasswordManagerEvent.EntryUpdated(1, Set.of("username", "note"), entries.get(2)),
+                new PasswordManagerEvent.BackupCodesChanged(1, entries.get(3)),
+                new PasswordManagerEvent.BackupCodesChanged(1, entries.get(4)),
+                new PasswordManagerEvent.BackupCodesChanged(1, entries.get(5)),
+                new PasswordManagerEvent.EntryDeleted(1),
+                new PasswordManagerEvent.AllEntriesChanged()
+            ),
+            events
+        );
+
+        // The writes made inside a batch are covered by its single event, even when it's rolled back.
+        events.clear();
+
+        assertFalse(db.batch(writer -> {
+            db.addPassword("https://codeberg.org/", "tester", "a0e564984bca24c5");
+            db.modifyWebsite(2, "https://gitea.com/");
+            db.deletePassword(2);
+            writer.modifyNote(1001, "note");
+        }).committed());
+
+        assertEquals(List.of(new PasswordManagerEvent.AllEntriesChanged()), events);
+        assertEquals(1, db.getPasswordsCount());
+        assertEquals("https://gitea.io/", db.fetchWebsite(2));
+    }
+
+    @Test
+    void rangeTest() {
+        List<NewPasswordEntry> entries = new ArrayList<>();
+
+        for (int i = 0; i < 1000; i++) {
+            entries.add(new NewPasswordEntry("https://site" + (999 - i) + ".com/", "user_" + i, "f1f4e8ad1c4e0c33"));
+        }
+
+        db.addPasswords(entries);
+
+        assertEquals(1000, db.countEntries(""));
+        assertEquals(10, db.countEntries("", new PasswordPage.Key(PasswordPage.SortColumn.ID, null, 11)));
+
+        // site0 is the last one added, site1 the one before...
+        List<PasswordEntry> byWebsite = db.fetchPage("", null, 2, PasswordPage.SortColumn.WEBSITE).entries();
+        assertEquals("https://site0.com/", byWebsite.get(0).website());
+        assertEquals("https://site1.com/", byWebsite.get(1).website());
+        assertEquals(1, db.countEntries("", PasswordPage.Key.after(PasswordPage.SortColumn.WEBSITE, byWebsite.get(1))));
+
+        // The filter ignores the case, _ and % are not wildcards.
+        assertEquals(11, db.countEntries("SITE99"));
+        assertEquals(1000, db.countEntries("r_"));
+        assertEquals(0, db.countEntries("r%"));
+        assertEquals(100, db.countEntries("9.C"));
+
+        PasswordPage filteredPage = db.fetchPage("9.c", null, 2, PasswordPage.SortColumn.USERNAME);
+        assertEquals(List.of(1, 11), filteredPage.entries().stream().map(PasswordEntry::id).toList());
+        assertEquals(List.of(101, 111), db.fetchPage("9.c", filteredPage.nextKey(), 2, PasswordPage.SortColumn.USERNAME).entries().stream().map(PasswordEntry::id).toList());
+
+        // The keys of the pages are the keys that following the pages gives.
+        List<PasswordPage.Key> keys = db.fetchPageKeys("", 300, PasswordPage.SortColumn.WEBSITE);
+        assertEquals(3, keys.size());
+
+        PasswordPage.Key key = null;
+
+        for (PasswordPage.Key pageKey : keys) {
+            key = db.fetchPage("", key, 300, PasswordPage.SortColumn.WEBSITE).nextKey();
+            assertEquals(pageKey, key);
+        }
+
+        assertEquals(100, db.fetchPage("", keys.get(2), 300, PasswordPage.SortColumn.WEBSITE).entries().size());
+
+        List<PasswordPage.Key> filteredKeys = db.fetchPageKeys("9.c", 5, PasswordPage.SortColumn.ID);
+        assertEquals(20, filteredKeys.size());
+        assertEquals(new PasswordPage.Key(PasswordPage.SortColumn.ID, null, 41), filteredKeys.get(0));
+    }
+
+    @Test
+    void rekeyTest() {
+        db.close();
+        db = new PasswordManagerSQLite(databasePath, "123", PasswordManagerSchema.Layout.SPLIT);
+
+        List<NewPasswordEntry> entries = new ArrayList<>();
+
+        for (int i = 0; i < 2500; i++) {
+            entries.add(new NewPasswordEntry("https://site" + i + ".com/", "tester", "f1f4e8ad1c4e0c33", "", i % 2 == 0 ? "note" : ""));
+        }
+
+        db.addPasswords(entries);
+        db.addBackupCode(1, "7ac5b2e1");
+
+        // Cancelled after the first chunk, the database keeps its password.
+        List<Long> progress = new ArrayList<>();
+
+        assertFalse(db.rekey("456", new RekeyListener() {
+            public void onProgress(long rowsCopied, long totalRows) {
+                progress.add(rowsCopied);
+            }
+
+            public boolean isCancelled() {
+                return !progress.isEmpty();
+            }
+        }));
+
+        assertEquals(List.of(1000L), progress);
+        assertFalse(Files.exists(directory.resolve("passwords.epm.rekey")));
+        assertTrue(PasswordManagerInterface.isFileADB(databasePath, "123"));
+
+        progress.clear();
+
+        // A password added during the copy is in the rekeyed file, the copy is made again.
+        assertTrue(db.rekey("456", (rowsCopied, totalRows) -> {
+            if (progress.isEmpty()) {
+                db.addPassword("https://gitlab.com/", "tester", "9c1f0e6a7b2d4e38");
+            }
+
+            progress.add(totalRows - rowsCopied);
+        }));
+        assertEquals(0L, (long) progress.get(progress.size() - 1));
+
+        // The instance keeps working on the rekeyed file.
+        assertEquals(2501, db.getPasswordsCount());
+        assertEquals("note", db.fetchNote(1));
+        assertEquals(List.of(1), db.search("site0", 10));
+        db.addPassword("https://github.com/", "tester", "67157420020d");
+        db.close();
+
+        assertFalse(PasswordManagerInterface.isFileADB(databasePath, "123"));
+        assertTrue(PasswordManagerInterface.isFileADB(databasePath, "456"));
+
+        db = new PasswordManagerSQLite(databasePath, "456");
+
+        assertEquals(2502, db.getPasswordsCount());
+        assertEquals(1, db.fetchBackupCodes(1).size());
+        assertEquals(PasswordManagerSchema.Layout.SPLIT, db.getLayout());
+    }
+
+    @Test
+    void openTest() throws IOException, SQLException {
+        db.addPassword("https://youtube.com/", "tester", "a0e564984bca24c5");
+        db.close();
+
+        db = PasswordManagerSQLite.open(databasePath, "123");
+        assertEquals("a0e564984bca24c5", db.fetchPassword(1));
+        db.close();
+
+        assertEquals(
+            PasswordManagerOpenException.Reason.WRONG_PASSWORD,
+            assertThrows(PasswordManagerOpenException.class, () -> PasswordManagerSQLite.open(databasePath, "1234")).getReason()
+        );
+
+        // Missing, too small for a salt and unencrypted.
+        Path missingPath = directory.resolve("missing.epm");
+        Path textPath = Files.writeString(directory.resolve("notes.txt"), "not a vault");
+        Path plainPath = directory.resolve("plain.db");
+
+        try (
+            Connection connection = new SQLiteConfig().createConnection("jdbc:sqlite:file:" + plainPath);
+            Statement statement = connection.createStatement();
+        ) {
+            statement.executeUpdate("CREATE TABLE passwords (id INTEGER PRIMARY KEY);");
+        }
+
+        for (Path path : List.of(missingPath, textPath, plainPath)) {
+            assertEquals(
+                PasswordManagerOpenException.Reason.NOT_A_VAULT,
+                assertThrows(PasswordManagerOpenException.class, () -> PasswordManagerSQLite.open(path, "123")).getReason()
+            );
+        }
+
+        assertFalse(Files.exists(missingPath));
+    }
+
+    @Test
+    void databaseFileSnifferTest() throws IOException {
+        db.close();
+
+        byte[] page = new byte[DatabaseFileSniffer.PAGE_SIZE];
+        Arrays.fill(page, (byte) 'a');
+
+        Path zeroPath = Files.write(directory.resolve("zero.epm"), new byte[DatabaseFileSniffer.PAGE_SIZE]);
+        Path textPath = Files.write(directory.resolve("text.epm"), page);
+        Path smallPath = Files.write(directory.resolve("small.epm"), Arrays.copyOf(page, 100));
+        Path unalignedPath = Files.write(directory.resolve("unaligned.epm"), Arrays.copyOf(Files.readAllBytes(databasePath), DatabaseFileSniffer.PAGE_SIZE + 1));
+
+        page[0] = 'P';
+        page[1] = 'K';
+        page[2] = 3;
+        page[3] = 4;
+        Path zipPath = Files.write(directory.resolve("archive.zip"), page);
+
+        assertEquals(DatabaseFileSniffer.Result.POSSIBLY_A_DATABASE, DatabaseFileSniffer.sniff(databasePath));
+        assertEquals(DatabaseFileSniffer.Result.ZERO_FILLED, DatabaseFileSniffer.sniff(zeroPath));
+        assertEquals(DatabaseFileSniffer.Result.TEXT, DatabaseFileSniffer.sniff(textPath));
+        assertEquals(DatabaseFileSniffer.Result.TOO_SMALL, DatabaseFileSniffer.sniff(smallPath));
+        assertEquals(DatabaseFileSniffer.Result.NOT_PAGE_ALIGNED, DatabaseFileSniffer.sniff(unalignedPath));
+        assertEquals(DatabaseFileSniffer.Result.KNOWN_FORMAT, DatabaseFileSniffer.sniff(zipPath));
+        assertEquals(DatabaseFileSniffer.Result.NOT_A_FILE, DatabaseFileSniffer.sniff(directory));
+
+        Files.copy(databasePath, Files.createDirectory(directory.resolve("backups")).resolve("old.epm"));
+
+        assertEquals(List.of(databasePath), DatabaseFileSniffer.findDatabases(directory, 1));
+        assertEquals(2, DatabaseFileSniffer.findDatabases(directory, 2).size());
+    }
 }